@@ -0,0 +1,180 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcessPool;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.vcs.VcsException;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Labels the processed versions with as few cleartool calls as possible: elements labeled on the same version are
+ * grouped into one mklabel call, the calls are run in several cleartool sessions at once.
+ * {@link #finish} must be called after all versions are processed.
+ */
+class BatchLabeler implements VersionProcessor {
+  private static final Logger LOG = Logger.getLogger(BatchLabeler.class);
+
+  private static final String SESSIONS_PROPERTY = "clearcase.label.sessions";
+  private static final String BATCH_SIZE_PROPERTY = "clearcase.label.batch.size";
+  private static final int MAX_COMMAND_LENGTH = 16 * 1024;
+
+  private final String myLabel;
+  private final String myWorkingDirectory;
+  private final int myBatchSize;
+  private final Map<String, Batch> myOpenBatches = new HashMap<String, Batch>();
+  private final ExecutorService myExecutor;
+  private final Semaphore myQueuedBatches;
+  private final AtomicInteger myLabeledCount = new AtomicInteger();
+  private volatile VcsException myError;
+
+  BatchLabeler(@NotNull final String label, @NotNull final String workingDirectory) {
+    final int sessions = Math.max(1, TeamCityProperties.getInteger(SESSIONS_PROPERTY, 4));
+    myLabel = label;
+    myWorkingDirectory = workingDirectory;
+    myBatchSize = Math.max(1, TeamCityProperties.getInteger(BATCH_SIZE_PROPERTY, 100));
+    myExecutor = Executors.newFixedThreadPool(sessions);
+    myQueuedBatches = new Semaphore(sessions * 2);
+  }
+
+  public void processFile(final String fileFullPath, final String relPath, final String pname, final String version,
+                          final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) throws VcsException {
+    add(version, ClearCaseConnection.insertDots(fileFullPath, false));
+  }
+
+  public void processDirectory(final String fileFullPath, final String relPath, final String pname, final String version,
+                               final ClearCaseConnection clearCaseConnection) throws VcsException {
+    add(version, ClearCaseConnection.insertDots(fileFullPath, true));
+  }
+
+  public void finishProcessingDirectory() {
+  }
+
+  /**
+   * Labels all the remaining versions and waits for all the started mklabel calls.
+   */
+  void finish() throws VcsException {
+    for (Batch batch : myOpenBatches.values()) {
+      submit(batch);
+    }
+    myOpenBatches.clear();
+    myExecutor.shutdown();
+    try {
+      while (!myExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOG.debug("Waiting for label " + myLabel + " to be applied, " + myLabeledCount.get() + " versions labeled so far");
+      }
+    } catch (InterruptedException e) {
+      throw new VcsException(e);
+    }
+    checkError();
+    LOG.debug("Label " + myLabel + " was applied to " + myLabeledCount.get() + " versions");
+  }
+
+  void dispose() {
+    myExecutor.shutdownNow();
+  }
+
+  private void add(@NotNull final String version, @NotNull final String pname) throws VcsException {
+    checkError();
+    Batch batch = myOpenBatches.get(version);
+    if (batch == null) {
+      batch = new Batch(version);
+      myOpenBatches.put(version, batch);
+    }
+    batch.add(pname);
+    if (batch.myPnames.size() >= myBatchSize || batch.myLength >= MAX_COMMAND_LENGTH) {
+      myOpenBatches.remove(version);
+      submit(batch);
+    }
+  }
+
+  private void submit(@NotNull final Batch batch) throws VcsException {
+    try {
+      myQueuedBatches.acquire();
+    } catch (InterruptedException e) {
+      throw new VcsException(e);
+    }
+    myExecutor.execute(new Runnable() {
+      public void run() {
+        try {
+          if (myError == null) {
+            mklabel(batch.myVersion, batch.myPnames);
+            myLabeledCount.addAndGet(batch.myPnames.size());
+          }
+        } catch (VcsException e) {
+          setError(e);
+        } catch (IOException e) {
+          setError(new VcsException(e));
+        } finally {
+          myQueuedBatches.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Labels the elements on the version in one cleartool session, it is called on the labeling threads.
+   */
+  void mklabel(@NotNull final String version, @NotNull final List<String> pnames) throws IOException, VcsException {
+    ClearCaseInteractiveProcessPool.doWithProcess(myWorkingDirectory, new ClearCaseInteractiveProcessPool.ProcessRunnable() {
+      public void run(@NotNull final ClearCaseInteractiveProcess process) throws IOException, VcsException {
+        ClearCaseConnection.mklabel(process, version, pnames, myLabel);
+      }
+    });
+  }
+
+  private void setError(@NotNull final VcsException e) {
+    if (myError == null) {
+      myError = e;
+    }
+  }
+
+  private void checkError() throws VcsException {
+    final VcsException error = myError;
+    if (error != null) throw error;
+  }
+
+  private static class Batch {
+    private final String myVersion;
+    private final List<String> myPnames = new ArrayList<String>();
+    private int myLength;
+
+    private Batch(@NotNull final String version) {
+      myVersion = version;
+      myLength = version.length();
+    }
+
+    private void add(@Nullable final String pname) {
+      if (pname == null) return;
+      myPnames.add(pname);
+      myLength += pname.length() + 1;
+    }
+  }
+}
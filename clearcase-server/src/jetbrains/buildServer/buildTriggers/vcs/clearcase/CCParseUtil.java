@@ -16,12 +16,14 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.clearcase;
 
+import com.intellij.openapi.util.Pair;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecRuleTokens;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.Dates;
 import jetbrains.buildServer.vcs.VcsException;
@@ -40,6 +42,9 @@ public class CCParseUtil {
   @NonNls private static final String DIRECTORY_ELEMENT = "directory element";
   @NonNls private static final String FILE_ELEMENT = "file element";
   @NonNls private static final String NOT_LOADED = "[not loaded]";
+  @NonNls private static final String VERSION_ENTRY = "version";
+  @NonNls private static final String DIRECTORY_VERSION_ENTRY = "directory version";
+  @NonNls private static final String RULE_ANNOTATION = "Rule:";
 
   private CCParseUtil() {}
 
@@ -137,6 +142,21 @@ public class CCParseUtil {
     if (!connection.isUCM()) {
       return iterator;
     }
+    if (UcmDeliveries.isEnabled()) {
+      try {
+        return UcmDeliveries.readSettledHistory(connection, fromVersion, iterator);
+      }
+      catch (final IOException e) {
+        LOG.debug("Cannot check UCM activities, waiting for the event count to settle: " + e.getLocalizedMessage());
+      }
+      return waitForStableEventCount(connection, fromVersion, connection.getChangesIterator(fromVersion));
+    }
+    return waitForStableEventCount(connection, fromVersion, iterator);
+  }
+
+  private static HistoryElementIterator waitForStableEventCount(final ClearCaseConnection connection,
+                                                                final Revision fromVersion,
+                                                                final HistoryElementIterator iterator) throws IOException, VcsException {
     final long delay = TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_LSHISTORY_UCM_DELAY, 5) * Dates.ONE_SECOND;
     final Revision thresholdRevision = connection.getCurrentRevision();
     int eventCount_1, eventCount_2 = getEventCount(iterator, thresholdRevision);
@@ -268,4 +288,37 @@ public class CCParseUtil {
 
     return null;
   }
+
+  /**
+   * Parses a line of "ls -long" output for a view-selected element, e.g. "version  path@@/main/3  Rule: /main/LATEST"
+   *
+   * @return the element path and its loaded version, null if the line is not a version or the element is not loaded
+   * exactly as selected (hijacked, checked out, etc.)
+   */
+  @Nullable
+  public static Pair<String, String> readLoadedVersionFromLSFormat(@NotNull final String line) {
+    final String text;
+    if (line.startsWith(DIRECTORY_VERSION_ENTRY)) {
+      text = line.substring(DIRECTORY_VERSION_ENTRY.length()).trim();
+    }
+    else if (line.startsWith(VERSION_ENTRY)) {
+      text = line.substring(VERSION_ENTRY.length()).trim();
+    }
+    else {
+      return null;
+    }
+
+    final int sepPos = text.indexOf(CC_VERSION_SEPARATOR);
+    if (sepPos <= 0) return null;
+
+    final String rest = text.substring(sepPos + CC_VERSION_SEPARATOR.length());
+    final int spacePos = rest.indexOf(' ');
+    final String version = spacePos == -1 ? rest : rest.substring(0, spacePos);
+    final String annotations = spacePos == -1 ? "" : rest.substring(spacePos);
+    final int rulePos = annotations.indexOf(RULE_ANNOTATION);
+    if ((rulePos == -1 ? annotations : annotations.substring(0, rulePos)).trim().length() > 0) return null;
+    if (version.contains(ConfigSpecRuleTokens.CHECKEDOUT)) return null;
+
+    return Pair.create(text.substring(0, sepPos), version);
+  }
 }
@@ -20,6 +20,16 @@ import com.intellij.execution.ExecutionException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.content.ElementContentCache;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Version;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.FileUtil;
@@ -28,6 +38,7 @@ import jetbrains.buildServer.vcs.VcsSupportUtil;
 import jetbrains.buildServer.vcs.patches.PatchBuilder;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class CCPatchProvider {
 
@@ -37,16 +48,39 @@ public class CCPatchProvider {
   private final ClearCaseConnection myConnection;
   public static final String CLEARCASE_OPTIMIZE_INITIAL_CHECKOUT_PROPERTY_NAME = "clearcase.optimize.initial.checkout";
   private static final boolean CC_OPTIMIZE_CHECKOUT = TeamCityProperties.getBoolean(CLEARCASE_OPTIMIZE_INITIAL_CHECKOUT_PROPERTY_NAME);
+  public static final String CLEARCASE_VERIFIED_INITIAL_CHECKOUT_PROPERTY_NAME = "clearcase.optimize.initial.checkout.verified";
   private static final String EXECUTABLE_ATTR = "ugo+x";
+  private static final String FETCHERS_PROPERTY_NAME = "clearcase.patch.fetchers";
+  private static final String MAX_PENDING_CONTENT_PROPERTY_NAME = "clearcase.patch.max.pending.content.mb";
   private final boolean myUseCCCache;
+  private final ElementContentCache myContentCache;
+  private ContentFetchPipeline myPipeline;
 
   public CCPatchProvider(ClearCaseConnection connection, final boolean useCcCache) {
+    this(connection, useCcCache, null);
+  }
+
+  public CCPatchProvider(ClearCaseConnection connection, final boolean useCcCache, @Nullable final ElementContentCache contentCache) {
     myConnection = connection;
     myUseCCCache = useCcCache;
+    myContentCache = contentCache;
+  }
+
+  /**
+   * @return false if the patch content depends on the view state rather than on the revisions only
+   */
+  static boolean isPatchReproducible(@Nullable final Revision fromVersion) {
+    return fromVersion != null || !CC_OPTIMIZE_CHECKOUT;
   }
 
   public void buildPatch(final PatchBuilder builder, final Revision fromVersion, final Revision lastVersion)
     throws IOException, VcsException, ExecutionException {
+    myConnection.useWarmedVersionTrees(lastVersion);
+    final int fetchers = TeamCityProperties.getInteger(FETCHERS_PROPERTY_NAME, 4);
+    if (fetchers > 1) {
+      myPipeline = new ContentFetchPipeline(builder, myConnection.getViewWholePath(), myConnection.isViewDynamic(), myContentCache, fetchers,
+                                            TeamCityProperties.getInteger(MAX_PENDING_CONTENT_PROPERTY_NAME, 64) * 1024L * 1024L);
+    }
     try {
       if (fromVersion == null) {
         if (CC_OPTIMIZE_CHECKOUT) {
@@ -54,6 +88,10 @@ public class CCPatchProvider {
                    "Remove internal property '" + CLEARCASE_OPTIMIZE_INITIAL_CHECKOUT_PROPERTY_NAME + "' to disable this optimization.");
           VcsSupportUtil.exportFilesFromDisk(builder, new File(myConnection.getViewWholePath()));
         }
+        else if (TeamCityProperties.getBoolean(CLEARCASE_VERIFIED_INITIAL_CHECKOUT_PROPERTY_NAME) && !myConnection.isViewDynamic()) {
+          // files loaded into the snapshot view in exactly the required versions are exported from disk, others are fetched
+          myConnection.processAllVersions(lastVersion, createFileProcessor(builder, myConnection.getLoadedVersions()), false, myUseCCCache);
+        }
         else {
           myConnection.processAllVersions(lastVersion, createFileProcessor(builder), false, myUseCCCache);
         }
@@ -78,18 +116,18 @@ public class CCPatchProvider {
                 }
               }
 
-              public void fileDeleted(@NotNull final SimpleDirectoryChildElement simpleChild) throws IOException {
-                builder.deleteFile(new File(getRelativePath(simpleChild)), false);
+              public void fileDeleted(@NotNull final SimpleDirectoryChildElement simpleChild) throws IOException, VcsException {
+                deleteFile(builder, getRelativePath(simpleChild));
               }
 
-              public void directoryDeleted(@NotNull final SimpleDirectoryChildElement simpleChild) throws IOException {
-                builder.deleteDirectory(new File(getRelativePath(simpleChild)), false);
+              public void directoryDeleted(@NotNull final SimpleDirectoryChildElement simpleChild) throws IOException, VcsException {
+                deleteDirectory(builder, getRelativePath(simpleChild));
               }
 
               public void directoryAdded(@NotNull final SimpleDirectoryChildElement simpleChild) throws VcsException, IOException {
                 final DirectoryChildElement child = simpleChild.createFullElement(myConnection);
                 if (child != null) {
-                  builder.createDirectory(new File(getRelativePath(child.getPath())));
+                  createDirectory(builder, getRelativePath(child.getPath()));
                   myConnection.processAllVersions(child.getFullPath(), getRelativePath(child.getPath()),createFileProcessor(builder));
                 }
               }
@@ -101,22 +139,174 @@ public class CCPatchProvider {
           }
         });
       }
-      else {
+      else if (!myUseCCCache || !buildSnapshotDiffPatch(builder, fromVersion, lastVersion)) {
         myConnection.processAllVersions(lastVersion, createFileProcessor(builder), false, myUseCCCache);
       }
+      if (myPipeline != null) {
+        myPipeline.finish();
+      }
     } finally {
+      if (myPipeline != null) {
+        myPipeline.dispose();
+        myPipeline = null;
+      }
       if (myTempFile != null) {
         FileUtil.delete(myTempFile);
       }
     }
   }
 
+  /**
+   * Builds the patch after a config spec change as the difference between the structure snapshot made with
+   * the previous config spec for fromVersion and the snapshot of lastVersion.
+   *
+   * @return false if there is no previous snapshot for fromVersion
+   */
+  private boolean buildSnapshotDiffPatch(final PatchBuilder builder, final Revision fromVersion, final Revision lastVersion) throws VcsException, IOException {
+    final Map<String, String> previousFiles = new HashMap<String, String>();
+    final Set<String> previousDirs = new HashSet<String>();
+    final boolean found = myConnection.processPreviousConfigSpecVersions(fromVersion, new VersionProcessor() {
+      public void processFile(final String fileFullPath,
+                              final String relPath,
+                              final String pname,
+                              final String version,
+                              final ClearCaseConnection clearCaseConnection,
+                              final boolean text,
+                              final boolean executable) {
+        previousFiles.put(relPath, version);
+      }
+
+      public void processDirectory(final String fileFullPath,
+                                   final String relPath,
+                                   final String pname,
+                                   final String version,
+                                   final ClearCaseConnection clearCaseConnection) {
+        previousDirs.add(relPath);
+      }
+
+      public void finishProcessingDirectory() {
+      }
+    });
+    if (!found) return false;
+
+    LOG.debug("Building patch for changed config spec from the previous structure snapshot of " + fromVersion.asString());
+    myConnection.processAllVersions(lastVersion, new VersionProcessor() {
+      public void processFile(final String fileFullPath,
+                              final String relPath,
+                              final String pname,
+                              final String version,
+                              final ClearCaseConnection clearCaseConnection,
+                              final boolean text,
+                              final boolean executable) throws VcsException {
+        try {
+          if (previousDirs.remove(relPath)) {
+            deleteDirectory(builder, relPath);
+            removeUnder(relPath, previousDirs);
+            removeUnder(relPath, previousFiles.keySet());
+          }
+          if (!version.equals(previousFiles.remove(relPath))) {
+            loadFile(fileFullPath, builder, relPath);
+          }
+        } catch (IOException e) {
+          throw new VcsException(e);
+        }
+      }
+
+      public void processDirectory(final String fileFullPath,
+                                   final String relPath,
+                                   final String pname,
+                                   final String version,
+                                   final ClearCaseConnection clearCaseConnection) throws VcsException {
+        try {
+          if (!previousDirs.remove(relPath)) {
+            if (previousFiles.remove(relPath) != null) {
+              deleteFile(builder, relPath);
+            }
+            createDirectory(builder, relPath);
+          }
+        } catch (IOException e) {
+          throw new VcsException(e);
+        }
+      }
+
+      public void finishProcessingDirectory() {
+      }
+    }, false, true);
+
+    // the rest of the previous snapshot is not selected anymore, only the topmost deleted directories are reported
+    for (String dir : new TreeSet<String>(previousDirs)) {
+      if (!isUnderAny(dir, previousDirs)) {
+        deleteDirectory(builder, dir);
+      }
+    }
+    for (String file : new TreeSet<String>(previousFiles.keySet())) {
+      if (!isUnderAny(file, previousDirs)) {
+        deleteFile(builder, file);
+      }
+    }
+    return true;
+  }
+
+  private static void removeUnder(@NotNull final String dir, @NotNull final Set<String> paths) {
+    final String prefix = dir + File.separator;
+    for (Iterator<String> it = paths.iterator(); it.hasNext();) {
+      if (it.next().startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  private static boolean isUnderAny(@NotNull final String path, @NotNull final Set<String> dirs) {
+    int sepPos = path.lastIndexOf(File.separatorChar);
+    while (sepPos > 0) {
+      if (dirs.contains(path.substring(0, sepPos))) return true;
+      sepPos = path.lastIndexOf(File.separatorChar, sepPos - 1);
+    }
+    return false;
+  }
+
+  private void deleteFile(final PatchBuilder builder, final String relPath) throws IOException, VcsException {
+    perform(builder, new ContentFetchPipeline.PatchAction() {
+      public void apply(@NotNull final PatchBuilder builder) throws IOException {
+        builder.deleteFile(new File(relPath), false);
+      }
+    });
+  }
+
+  private void deleteDirectory(final PatchBuilder builder, final String relPath) throws IOException, VcsException {
+    perform(builder, new ContentFetchPipeline.PatchAction() {
+      public void apply(@NotNull final PatchBuilder builder) throws IOException {
+        builder.deleteDirectory(new File(relPath), false);
+      }
+    });
+  }
+
+  /**
+   * Performs the patch operation in order with the files being loaded.
+   */
+  private void perform(final PatchBuilder builder, final ContentFetchPipeline.PatchAction action) throws IOException, VcsException {
+    if (myPipeline != null) {
+      myPipeline.addAction(action);
+    }
+    else {
+      action.apply(builder);
+    }
+  }
+
   @NotNull
   private String getRelativePath(@NotNull final SimpleDirectoryChildElement simpleChild) {
     return myConnection.getRelativePath(simpleChild);
   }
 
   private VersionProcessor createFileProcessor(final PatchBuilder builder) {
+    return createFileProcessor(builder, null);
+  }
+
+  /**
+   * @param loadedVersions versions loaded into the snapshot view by relative paths, the files with the same versions
+   * are exported from disk instead of being fetched
+   */
+  private VersionProcessor createFileProcessor(final PatchBuilder builder, @Nullable final Map<String, String> loadedVersions) {
     return new VersionProcessor() {
       public void processFile(final String fileFullPath,
                               final String relPath,
@@ -126,6 +316,21 @@ public class CCPatchProvider {
                               final boolean text,
                               final boolean executable)
         throws VcsException {
+        if (loadedVersions != null && CCPathElement.normalizeSeparators(version).equals(loadedVersions.get(relPath))) {
+          final File diskFile = new File(myConnection.getViewWholePath(), relPath);
+          if (diskFile.isFile()) {
+            try {
+              perform(builder, new ContentFetchPipeline.PatchAction() {
+                public void apply(@NotNull final PatchBuilder builder) throws VcsException {
+                  writeFile(builder, relPath, diskFile, new ClearCaseFileAttr(executable, text));
+                }
+              });
+            } catch (IOException e) {
+              throw new VcsException(e);
+            }
+            return;
+          }
+        }
         loadFile(fileFullPath, builder, relPath);
       }
 
@@ -135,7 +340,7 @@ public class CCPatchProvider {
                                    final String version, final ClearCaseConnection clearCaseConnection)
         throws VcsException {
         try {
-          builder.createDirectory(new File(relPath));
+          createDirectory(builder, relPath);
         } catch (IOException e) {
           throw new VcsException(e);
         }            
@@ -151,57 +356,117 @@ public class CCPatchProvider {
     return myConnection.getRelativePath(path);
   }
 
+  private void createDirectory(final PatchBuilder builder, final String relPath) throws IOException, VcsException {
+    perform(builder, new ContentFetchPipeline.PatchAction() {
+      public void apply(@NotNull final PatchBuilder builder) throws IOException {
+        builder.createDirectory(new File(relPath));
+      }
+    });
+  }
+
   private void loadFile(final String line, final PatchBuilder builder, String relativePath) throws VcsException {
+    final String pathWithoutVersion =
+      CCPathElement.replaceLastVersionAndReturnFullPathWithVersions(line, myConnection.getViewWholePath(), null);
+    if (myPipeline != null) {
+      myPipeline.addFile(line, pathWithoutVersion, relativePath);
+      return;
+    }
     try {
-      final File tempFile = getTempFile();
-      FileUtil.delete(tempFile);
+      if (myContentCache != null) {
+        // a copy, the cached file may be evicted while it is being written
+        final File cachedFile = getTempFile();
+        try {
+          if (myContentCache.copyFile(line, cachedFile)) {
+            final ClearCaseFileAttr cachedAttr = myContentCache.getFileAttr(line);
+            writeFile(builder, relativePath, cachedFile, cachedAttr != null ? cachedAttr : myConnection.loadFileAttr(pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR));
+            return;
+          }
+        } finally {
+          FileUtil.delete(cachedFile);
+        }
+      }
 
-      myConnection.loadFileContent(tempFile, line);
-      if (tempFile.isFile()) {
-        final String pathWithoutVersion =
-          CCPathElement.replaceLastVersionAndReturnFullPathWithVersions(line, myConnection.getViewWholePath(), null);
-        ClearCaseFileAttr fileAttr = myConnection.loadFileAttr(pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR);
+      // a cacheable content is loaded right into the cache directory and is adopted by the cache after writing
+      final boolean cacheable = myContentCache != null && ElementContentCache.isCacheable(line, myConnection.getViewWholePath());
+      final File tempFile = cacheable ? myContentCache.createIncomingFile() : getTempFile();
+      FileUtil.delete(tempFile);
 
-        final String fileMode = fileAttr.isIsExecutable() ? EXECUTABLE_ATTR : null;
-        if (fileAttr.isIsText()) {
-          final FileInputStream input = new FileInputStream(tempFile);
-          try {
-            builder.changeOrCreateTextFile(new File(relativePath), fileMode, input, tempFile.length(), null);
-          } finally {
-            input.close();
+      try {
+        myConnection.loadFileContent(tempFile, line);
+        if (tempFile.isFile()) {
+          ClearCaseFileAttr fileAttr = myConnection.loadFileAttr(pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR);
+          final MessageDigest digest = cacheable ? ElementContentCache.createDigest() : null;
+          writeFile(builder, relativePath, tempFile, fileAttr, digest);
+          if (digest != null) {
+            myContentCache.adopt(line, tempFile, ElementContentCache.toHex(digest.digest()), fileAttr);
           }
         }
-        else {
-          final FileInputStream input = new FileInputStream(tempFile);
-          try {
-            builder.changeOrCreateBinaryFile(new File(relativePath), fileMode, input, tempFile.length());
-          } finally {
-            input.close();
-          }
+      } finally {
+        if (cacheable) {
+          FileUtil.delete(tempFile);
         }
-
       }
     } catch (ExecutionException e) {
       throw new VcsException(e);
     } catch (InterruptedException e) {
       throw new VcsException(e);
-    } catch (IOException primary) {
-      //TODO: apply ILineFilter for such errors?
-      //TW-10811 hotfix: threat files that cannot get own context as "rmelem'ed"
-      if (primary.getMessage().contains("Operation \"get cleartext\" failed: not a ClearCase object.")) {
-        try {
-          LOG.warn(
-            String.format("Could not get content of \"%s\", perhaps element was \"rmelem\"'ed. 'll produce deletion. Original message: %s",
-                          line,
-                          primary.getMessage()));
-          builder.deleteFile(new File(relativePath), false);
-        } catch (IOException secondary) {
-          throw new VcsException(secondary.initCause(primary));//keep source exception as cause
+    } catch (IOException e) {
+      processLoadError(builder, line, relativePath, e);
+    }
+  }
+
+  static void writeFile(final PatchBuilder builder, final String relativePath, final File file, final ClearCaseFileAttr fileAttr) throws VcsException {
+    writeFile(builder, relativePath, file, fileAttr, null);
+  }
+
+  /**
+   * Streams the file into the patch, the digest (if any) is updated with the whole file content on the way.
+   */
+  static void writeFile(final PatchBuilder builder,
+                        final String relativePath,
+                        final File file,
+                        final ClearCaseFileAttr fileAttr,
+                        @Nullable final MessageDigest digest) throws VcsException {
+    final String fileMode = fileAttr.isIsExecutable() ? EXECUTABLE_ATTR : null;
+    try {
+      final InputStream input = digest == null ? new FileInputStream(file) : new DigestInputStream(new FileInputStream(file), digest);
+      try {
+        if (fileAttr.isIsText()) {
+          builder.changeOrCreateTextFile(new File(relativePath), fileMode, input, file.length(), null);
+        }
+        else {
+          builder.changeOrCreateBinaryFile(new File(relativePath), fileMode, input, file.length());
         }
-        return;
+        if (digest != null) {
+          final byte[] buffer = new byte[8192];
+          //noinspection StatementWithEmptyBody
+          while (input.read(buffer) != -1);
+        }
+      } finally {
+        input.close();
+      }
+    } catch (IOException e) {
+      throw new VcsException(e);
+    }
+  }
+
+
+  static void processLoadError(final PatchBuilder builder, final String line, final String relativePath, final IOException primary) throws VcsException {
+    //TODO: apply ILineFilter for such errors?
+    //TW-10811 hotfix: threat files that cannot get own context as "rmelem'ed"
+    if (primary.getMessage() != null && primary.getMessage().contains("Operation \"get cleartext\" failed: not a ClearCase object.")) {
+      try {
+        LOG.warn(
+          String.format("Could not get content of \"%s\", perhaps element was \"rmelem\"'ed. 'll produce deletion. Original message: %s",
+                        line,
+                        primary.getMessage()));
+        builder.deleteFile(new File(relativePath), false);
+      } catch (IOException secondary) {
+        throw new VcsException(secondary.initCause(primary));//keep source exception as cause
       }
-      throw new VcsException(primary);
+      return;
     }
+    throw new VcsException(primary);
   }
 
   public void dispose() {
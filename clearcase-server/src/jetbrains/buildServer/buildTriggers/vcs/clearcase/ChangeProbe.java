@@ -0,0 +1,205 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcessPool;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Finds out cheaply whether anything could have changed under the path of a root: one "find -version created_since(...)"
+ * query replaces the history queries for idle roots. The query stops at the first version found. A quiet probe result
+ * is shared for a short time by all roots with the same path or a path below it.
+ * Removing versions or elements creates no versions, so the current version of a root is recomputed completely from time to time anyway.
+ */
+class ChangeProbe {
+  private static final Logger LOG = Logger.getLogger(ChangeProbe.class);
+
+  private static final String ENABLED_PROPERTY = "clearcase.change.probe.enabled";
+  private static final String PATH_CACHE_PROPERTY = "clearcase.change.probe.path.cache.seconds";
+  private static final String MAX_AGE_PROPERTY = "clearcase.change.probe.max.age.seconds";
+  private static final int MAX_ENTRIES = 1000;
+  // history dates have seconds precision
+  private static final long MARGIN = 60 * 1000L;
+
+  private final @NotNull Map<String, QuietPeriod> myQuietPaths = createLruMap();
+  private final @NotNull Map<String, ComputedVersion> myCurrentVersions = createLruMap();
+
+  static boolean isEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY);
+  }
+
+  /**
+   * @return the current version computed for the root before if no versions were created under its path since then, otherwise null
+   */
+  @Nullable
+  String getCurrentVersionIfUnchanged(@NotNull final VcsRoot root) {
+    if (!isEnabled()) return null;
+    final ComputedVersion computed;
+    synchronized (myCurrentVersions) {
+      computed = myCurrentVersions.get(getRootKey(root));
+    }
+    if (computed == null || System.currentTimeMillis() - computed.myComputeTime > getMaxAge()) {
+      return null;
+    }
+    return isQuietSince(root, computed.myComputeTime) ? computed.myVersion : null;
+  }
+
+  void currentVersionComputed(@NotNull final VcsRoot root, @NotNull final String version, final long computeTime) {
+    if (!isEnabled()) return;
+    final long maxAge = getMaxAge();
+    synchronized (myCurrentVersions) {
+      for (Iterator<ComputedVersion> it = myCurrentVersions.values().iterator(); it.hasNext();) {
+        if (System.currentTimeMillis() - it.next().myComputeTime > maxAge) {
+          it.remove();
+        }
+      }
+      myCurrentVersions.put(getRootKey(root), new ComputedVersion(version, computeTime));
+    }
+  }
+
+  /**
+   * @return true if no versions were created under the path of the root since the moment, false if there were or it is not known
+   */
+  private boolean isQuietSince(@NotNull final VcsRoot root, final long time) {
+    if (!isEnabled()) return false;
+    final long since = time - CCParseUtil.getLookForTheChangesInThePastMinutes() * 60 * 1000L - MARGIN;
+    final String path;
+    try {
+      path = getPath(root);
+    }
+    catch (Exception e) {
+      LOG.debug("Cannot resolve the path of " + root.getName() + ": " + e.getLocalizedMessage());
+      return false;
+    }
+    if (isKnownQuiet(path, since)) return true;
+
+    try {
+      final long probeTime = System.currentTimeMillis();
+      if (hasVersionsCreatedSince(path, new Date(since))) return false;
+      synchronized (myQuietPaths) {
+        final QuietPeriod period = myQuietPaths.get(path);
+        if (period == null || period.myUntil < probeTime) {
+          myQuietPaths.put(path, new QuietPeriod(since, probeTime));
+        }
+      }
+      LOG.debug("No versions were created in " + path + " since " + CCCommonParseUtil.formatDate(new Date(since)));
+      return true;
+    }
+    catch (Exception e) {
+      LOG.debug("Change probe failed for " + path + ": " + e.getLocalizedMessage());
+      return false;
+    }
+  }
+
+  /**
+   * @return true if the path or one of its parents was found quiet since the moment a short time ago
+   */
+  private boolean isKnownQuiet(@NotNull final String path, final long since) {
+    final long cacheTime = TeamCityProperties.getInteger(PATH_CACHE_PROPERTY, 10) * 1000L;
+    synchronized (myQuietPaths) {
+      for (File file = new File(path); file != null; file = file.getParentFile()) {
+        final String quietPath = file.getPath();
+        final QuietPeriod period = myQuietPaths.get(quietPath);
+        if (period == null) continue;
+        if (System.currentTimeMillis() - period.myUntil > cacheTime) {
+          myQuietPaths.remove(quietPath);
+          continue;
+        }
+        if (period.mySince <= since) return true;
+      }
+      return false;
+    }
+  }
+
+  @NotNull
+  String getPath(@NotNull final VcsRoot root) throws VcsException, IOException {
+    return ClearCaseSupport.getViewPath(root).getWholePath();
+  }
+
+  boolean hasVersionsCreatedSince(@NotNull final String path, @NotNull final Date since) throws IOException, VcsException {
+    return ClearCaseInteractiveProcessPool.doWithProcess(path, new ClearCaseInteractiveProcessPool.ProcessComputable<Boolean>() {
+      public Boolean compute(@NotNull final ClearCaseInteractiveProcess process) throws IOException, VcsException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(process.executeAndReturnProcessInput(new String[] {
+          "find", ClearCaseConnection.insertDots(path, true), "-version", "created_since(" + CCCommonParseUtil.formatDate(since) + ")", "-print"
+        })));
+        try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            if (line.trim().length() > 0) return true;
+          }
+          return false;
+        }
+        finally {
+          reader.close();
+        }
+      }
+    });
+  }
+
+  private static long getMaxAge() {
+    return TeamCityProperties.getInteger(MAX_AGE_PROPERTY, 600) * 1000L;
+  }
+
+  @NotNull
+  private static String getRootKey(@NotNull final VcsRoot root) {
+    return root.getId() + "\n" + root.getProperties().hashCode();
+  }
+
+  @NotNull
+  private static <T> Map<String, T> createLruMap() {
+    return new LinkedHashMap<String, T>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, T> eldest) {
+        return size() > MAX_ENTRIES;
+      }
+    };
+  }
+
+  private static class QuietPeriod {
+    private final long mySince;
+    private final long myUntil;
+
+    private QuietPeriod(final long since, final long until) {
+      mySince = since;
+      myUntil = until;
+    }
+  }
+
+  private static class ComputedVersion {
+    private final @NotNull String myVersion;
+    private final long myComputeTime;
+
+    private ComputedVersion(@NotNull final String version, final long computeTime) {
+      myVersion = version;
+      myComputeTime = computeTime;
+    }
+  }
+}
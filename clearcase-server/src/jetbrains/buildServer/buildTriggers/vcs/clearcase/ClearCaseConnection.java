@@ -17,8 +17,10 @@
 package jetbrains.buildServer.buildTriggers.vcs.clearcase;
 
 import com.intellij.execution.ExecutionException;
+import com.intellij.openapi.util.Pair;
 import com.intellij.util.Consumer;
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
@@ -29,9 +31,11 @@ import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecPa
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcessPool;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.structure.CacheElement;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.structure.CacheProcessor;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.structure.ClearCaseStructureCache;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Version;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.VersionTree;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.VersionTreeCache;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.MultiMap;
@@ -57,6 +61,8 @@ public class ClearCaseConnection {
   private final boolean myUCMSupported;
 
   private static final Map<String, Semaphore> viewName2Semaphore = new ConcurrentHashMap<String, Semaphore>();
+  private static final VersionTreeCache ourWarmedVersionTrees = new VersionTreeCache();
+  private static final ViewMetadataCache ourViewMetadata = new ViewMetadataCache();
 
   private static final String UNIX_VIEW_PATH_PREFIX = "/view/";
 
@@ -84,10 +90,15 @@ public class ClearCaseConnection {
   private final ConfigSpec myConfigSpec;
 
   private static final String UPDATE_LOG = "teamcity.clearcase.update.result.log";
+  private static final String DIRECT_READ_PROPERTY = "clearcase.dynamic.view.direct.read";
+  private static final String VIEW_RESOLVED_VERSIONS_PROPERTY = "clearcase.view.resolved.versions";
+  private static final String BRANCH_SCOPED_VERSION_TREES_PROPERTY = "clearcase.version.tree.branch.scoped";
 
   private final ClearCaseStructureCache myCache;
   private final VcsRoot myRoot;
   private final boolean myConfigSpecWasChanged;
+  private final boolean myViewIsDynamic;
+  @Nullable private final String myLabelsFingerprint;
 
   @NotNull private final ClearCaseInteractiveProcess myProcess;
 
@@ -95,11 +106,27 @@ public class ClearCaseConnection {
   private final Map<String, List<SimpleDirectoryChildElement>> myDirectoryContentCache = new HashMap<String, List<SimpleDirectoryChildElement>>();
   @NotNull
   private final Map<String, Version> myDirectoryVersionCache = new HashMap<String, Version>();
+  private long myWarmedVersionTreesNotBefore = Long.MAX_VALUE;
+  @Nullable private Map<String, String> myLoadedVersions;
+  @Nullable private Map<String, String> myViewResolvedVersions;
 
   boolean isConfigSpecWasChanged() {
     return myConfigSpecWasChanged;
   }
 
+  boolean isViewDynamic() {
+    return myViewIsDynamic;
+  }
+
+  /**
+   * @return the fingerprint of the labels the config spec refers to, it changes when they are moved;
+   * null if the config spec does not refer to labels or they are not tracked
+   */
+  @Nullable
+  String getLabelsFingerprint() {
+    return myLabelsFingerprint;
+  }
+
   public ClearCaseConnection(final ViewPath viewPath, /*boolean ucmSupported, */
                              @NotNull final ClearCaseInteractiveProcess process,
                              final ClearCaseStructureCache cache,
@@ -115,7 +142,8 @@ public class ClearCaseConnection {
 
     myUCMSupported = isUCMView(root);//ucmSupported;
 
-    if (!isClearCaseView(myViewPath.getClearCaseViewPath(), myProcess)) {
+    final ViewMetadataCache.ViewMetadata viewMetadata = getViewMetadata(myViewPath.getClearCaseViewPath(), myProcess);
+    if (viewMetadata == null) {
       throw new VcsException("Invalid ClearCase view: \"" + myViewPath.getClearCaseViewPath() + "\"");
     }
 
@@ -129,15 +157,22 @@ public class ClearCaseConnection {
     }
 
     myConfigSpec = checkCSChange && configSpecFile != null
-                   ? ConfigSpecParseUtil.getAndSaveConfigSpec(myViewPath, configSpecFile, myProcess)
-                   : ConfigSpecParseUtil.getConfigSpec(myViewPath, myProcess);
+                   ? ConfigSpecParseUtil.getAndSaveConfigSpec(myViewPath, configSpecFile, viewMetadata.getConfigSpecInputStream())
+                   : viewMetadata.getConfigSpec(myViewPath);
 
-    myConfigSpec.setViewIsDynamic(isViewIsDynamic());
+    myViewIsDynamic = viewMetadata.isDynamic();
+    myConfigSpec.setViewIsDynamic(myViewIsDynamic);
 
     myConfigSpecWasChanged = checkCSChange && configSpecFile != null && !myConfigSpec.equals(oldConfigSpec);
 
     if (myConfigSpecWasChanged) {
-      myCache.clearCaches(root);
+      myCache.configSpecChanged(root, myViewPath.getWholePathWithoutIncludeRule(), getClearCaseViewPath(), oldConfigSpec, myConfigSpec);
+    }
+
+    myLabelsFingerprint = myCache == null ? null : LabelMoveTracker.getFingerprint(this, root.getId(), cacheDir);
+    if (myCache != null) {
+      myCache.bindToSharedSnapshots(root, getClearCaseViewPath(), ConfigSpecParseUtil.getNormalizedHash(viewMetadata.getConfigSpecInputStream()),
+                                    myLabelsFingerprint);
     }
 
     if (!myConfigSpec.isUnderLoadRules(getClearCaseViewPath(), myViewPath.getWholePath())) {
@@ -148,6 +183,14 @@ public class ClearCaseConnection {
     updateCurrentView();
   }
 
+  /**
+   * @return cached metadata of the view or null if the path is not a view root
+   */
+  @Nullable
+  static ViewMetadataCache.ViewMetadata getViewMetadata(@NotNull final String ccViewPath, @NotNull final ClearCaseInteractiveProcess process) throws IOException {
+    return ourViewMetadata.getMetadata(ccViewPath, process);
+  }
+
   private static boolean isUCMView(final @NotNull VcsRoot root) {
     return root.getProperty(Constants.TYPE, Constants.BASE).equals(Constants.UCM);
   }
@@ -224,26 +267,105 @@ public class ClearCaseConnection {
   }
 
   private VersionTree readVersionTree(final String path, final VersionTree versionTree, final boolean isDirPath) throws IOException, VcsException {
-    final InputStream inputStream = executeAndReturnProcessInput(new String[] { "lsvtree", "-obs", "-all", insertDots(path, isDirPath) });
+    return readVersionTree(path, versionTree, isDirPath, true);
+  }
+
+  /**
+   * @param partialAllowed the tree may be loaded for the branches the config spec selects versions on only
+   */
+  private VersionTree readVersionTree(final String path, final VersionTree versionTree, final boolean isDirPath, final boolean partialAllowed) throws IOException, VcsException {
+    final String pathWithoutVersions = getPathWithoutVersions(path);
+    List<String> versions = ourWarmedVersionTrees.get(pathWithoutVersions, isDirPath, myWarmedVersionTreesNotBefore);
+    if (versions == null && partialAllowed && TeamCityProperties.getBoolean(BRANCH_SCOPED_VERSION_TREES_PROPERTY)) {
+      final SortedSet<String> branchPaths = myConfigSpec.getBranchPaths();
+      if (branchPaths != null) {
+        versions = doReadBranches(path, branchPaths, isDirPath);
+        if (versions != null) {
+          versionTree.setLoadedBranches(branchPaths);
+        }
+      }
+    }
+    if (versions == null) {
+      versions = doReadVersionTree(path, isDirPath);
+    }
+    for (String version : versions) {
+      versionTree.addVersion(version);
+    }
+
+    final List<HistoryElement> deletedVersions = myDeletedVersions.get(pathWithoutVersions);
+    for (HistoryElement deletedVersion : deletedVersions) {
+      final String version = normalizeVersion(deletedVersion.getObjectVersion());
+      if (versionTree.isBranchLoaded(version)) {
+        versionTree.addVersion(version);
+      }
+    }
+    return versionTree;
+  }
+
+  /**
+   * Reads versions on the branches only, without their sub-branches, instead of the whole version tree
+   * which may be huge for elements with lots of branches.
+   * @return versions on the branches or null if they cannot be read separately
+   */
+  @Nullable
+  private List<String> doReadBranches(final String path, @NotNull final SortedSet<String> branchPaths, final boolean isDirPath) throws IOException, VcsException {
+    final List<String> result = new ArrayList<String>();
+    for (String branchPath : branchPaths) {
+      try {
+        result.addAll(readVersions(new String[] { "lsvtree", "-obs", "-all", "-nrecurse", "-branch", branchPath, insertDots(path, isDirPath) }));
+      }
+      catch (IOException e) {
+        final String message = e.getMessage();
+        if (message == null || !message.contains("not found")) {
+          LOG.debug("Cannot read branch " + branchPath + " of " + path + ", the whole version tree is read: " + message);
+          return null;
+        }
+        LOG.debug("Element " + path + " has no branch " + branchPath);
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private List<String> doReadVersionTree(final String path, final boolean isDirPath) throws IOException, VcsException {
+    return readVersions(new String[] { "lsvtree", "-obs", "-all", insertDots(path, isDirPath) });
+  }
+
+  @NotNull
+  private List<String> readVersions(@NotNull final String[] command) throws IOException {
+    final InputStream inputStream = executeAndReturnProcessInput(command);
     final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+    final List<String> result = new ArrayList<String>();
     try {
-
       String line;
       while ((line = reader.readLine()) != null) {
         if (line.trim().length() > 0) {
-          String elementVersion = readVersion(line);
-          versionTree.addVersion(elementVersion);
+          result.add(readVersion(line));
         }
       }
-
-      final List<HistoryElement> deletedVersions = myDeletedVersions.get(getPathWithoutVersions(path));
-      for (HistoryElement deletedVersion : deletedVersions) {
-        versionTree.addVersion(normalizeVersion(deletedVersion.getObjectVersion()));
-      }
     } finally {
       reader.close();
     }
-    return versionTree;
+    return result;
+  }
+
+  /**
+   * Reads the version tree of the element ahead of time, so that it can be used by connections working on
+   * revisions made before now.
+   */
+  void warmUpVersionTree(@NotNull final String path, final boolean isDirPath) throws IOException, VcsException {
+    final List<String> versions = doReadVersionTree(path, isDirPath);
+    ourWarmedVersionTrees.put(getPathWithoutVersions(path), isDirPath, versions);
+  }
+
+  /**
+   * Allows this connection to use version trees which were read ahead of time, if they were read after the revision.
+   */
+  void useWarmedVersionTrees(@NotNull final Revision version) {
+    final DateRevision dateRevision = version.getDateRevision();
+    if (dateRevision == null) return;
+    // the check-ins looked for in the past may have been made before the revision date but recorded later
+    myWarmedVersionTreesNotBefore = dateRevision.getDate().getTime() + CCParseUtil.getLookForTheChangesInThePastMinutes() * 60 * 1000L;
   }
 
   public static String readVersion(final String line) {
@@ -359,6 +481,35 @@ public class ClearCaseConnection {
     return executeAndReturnProcessInput(ClearCaseSupport.makeArray(optionList));
   }
 
+  /**
+   * @return minor events (like applying and removing labels) of the whole VOB of the view path since the date
+   */
+  @NotNull
+  InputStream readMinorHistory(@NotNull final Date since, @NotNull final String format) throws IOException {
+    return executeAndReturnProcessInput(new String[] {
+      "lshistory", "-minor", "-all", "-since", CCCommonParseUtil.formatDate(since), "-fmt", format, insertDots(getViewWholePath(), true)
+    });
+  }
+
+  /**
+   * @return true if the change set of the UCM activity contains checked out versions, i.e. the activity is not completed yet
+   */
+  boolean hasCheckedOutVersions(@NotNull final String activity) throws IOException {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(executeAndReturnProcessInput(new String[] {
+      "lsactivity", "-fmt", "%[versions]p\\n", "activity:" + activity
+    })));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.contains("CHECKEDOUT")) return true;
+      }
+      return false;
+    }
+    finally {
+      reader.close();
+    }
+  }
+
   @NotNull
   private List<String> getLSHistoryOptions() {
     final String lsHistoryOptionsString = getLSHistoryOptionsString();
@@ -450,9 +601,52 @@ public class ClearCaseConnection {
   }
 
   void loadFileContent(final File tempFile, final String line) throws ExecutionException, InterruptedException, IOException, VcsException {
+    loadFileContent(myProcess, tempFile, line, myViewIsDynamic);
+  }
+
+  static void loadFileContent(@NotNull final ClearCaseInteractiveProcess process, final File tempFile, final String line, final boolean viewIsDynamic)
+    throws IOException, VcsException {
+    if (viewIsDynamic && TeamCityProperties.getBooleanOrTrue(DIRECT_READ_PROPERTY) && copyVersionFromView(line, tempFile)) {
+      return;
+    }
     final String destFileFqn = insertDots(tempFile.getAbsolutePath(), false);
     final String versionFqn = insertDots(line, false);
-    myProcess.copyFileContentTo(versionFqn, destFileFqn);
+    process.copyFileContentTo(versionFqn, destFileFqn);
+  }
+
+  /**
+   * A dynamic view exposes every version of an element as a file under its version-extended path,
+   * so the content can be copied without cleartool.
+   * @return false if the version cannot be read through the view, the content should be loaded with cleartool then
+   */
+  static boolean copyVersionFromView(@NotNull final String versionPath, @NotNull final File destFile) {
+    final File versionFile = new File(versionPath);
+    if (!versionFile.isAbsolute() || !versionFile.isFile()) return false;
+    FileInputStream input = null;
+    FileOutputStream output = null;
+    try {
+      input = new FileInputStream(versionFile);
+      output = new FileOutputStream(destFile);
+      final FileChannel source = input.getChannel();
+      final FileChannel target = output.getChannel();
+      final long size = source.size();
+      long position = 0;
+      while (position < size) {
+        position += source.transferTo(position, size - position, target);
+      }
+      return true;
+    }
+    catch (IOException e) {
+      LOG.debug("Cannot read " + versionPath + " through the view, loading it with cleartool: " + e.getLocalizedMessage());
+      FileUtil.close(output);
+      output = null;
+      FileUtil.delete(destFile);
+      return false;
+    }
+    finally {
+      FileUtil.close(input);
+      FileUtil.close(output);
+    }
   }
 
   public void collectChangesToIgnore(final Revision lastVersion) throws VcsException {
@@ -486,13 +680,17 @@ public class ClearCaseConnection {
 
   @Nullable
   public Version findVersion(final String objectPath, final String objectVersion, final boolean isDirPath) throws IOException, VcsException {
-    final VersionTree versionTree = new VersionTree();
-
-    readVersionTree(objectPath, versionTree, isDirPath);
-
     final String normalizedVersion = objectVersion.startsWith(CCParseUtil.CC_VERSION_SEPARATOR) ? objectVersion.substring(CCParseUtil.CC_VERSION_SEPARATOR.length()) : objectVersion;
 
-    final Version versionByPath = versionTree.findVersionByPath(normalizedVersion);
+    VersionTree versionTree = new VersionTree();
+    readVersionTree(objectPath, versionTree, isDirPath);
+    Version versionByPath = versionTree.findVersionByPath(normalizedVersion);
+    if (versionByPath == null && versionTree.isPartial()) {
+      // the version may be on a branch omitted from the partial tree
+      versionTree = new VersionTree();
+      readVersionTree(objectPath, versionTree, isDirPath, false);
+      versionByPath = versionTree.findVersionByPath(normalizedVersion);
+    }
 
     if (versionByPath == null) {
       LOG.debug("ClearCase: version by path not found for " + objectPath + " by " + normalizedVersion);
@@ -595,6 +793,7 @@ public class ClearCaseConnection {
   protected void updateCurrentView() throws VcsException {
     Semaphore semaphore;
     final String viewPath = myViewPath.getClearCaseViewPath(); 
+    final long requestTime = System.currentTimeMillis();
     synchronized (viewName2Semaphore) {
       semaphore = viewName2Semaphore.get(viewPath);
       if (semaphore == null) {
@@ -604,12 +803,20 @@ public class ClearCaseConnection {
     }
     try {
       semaphore.acquire();
+      // the update which started while this one was waiting brought the view up to date already
+      if (ourViewMetadata.isUpdatedSince(viewPath, requestTime)) {
+        LOG.debug("View " + viewPath + " was updated just now, skipping update");
+        return;
+      }
+      final long updateStartTime = System.currentTimeMillis();
       //      final String log = writeLog ? UPDATE_LOG : (SystemInfo.isWindows ? "NUL" : "/dev/null");
       executeAndReturnProcessInput(new String[] { "update", "-force", "-rename", "-log", UPDATE_LOG /*log*/}).close();
+      ourViewMetadata.viewUpdated(viewPath, updateStartTime);
     } catch (IOException e) {
       if (e.getLocalizedMessage().contains("is not a valid snapshot view path")) {
         //ignore, it is dynamic view
         LOG.debug("Please ignore the error above if you use dynamic view.");
+        ourViewMetadata.viewUpdated(viewPath, requestTime);
       } else {
         throw new VcsException(e);
       }
@@ -622,22 +829,79 @@ public class ClearCaseConnection {
 
   }
 
-  protected boolean isViewIsDynamic() throws IOException {
-    final InputStream inputStream = myProcess.executeAndReturnProcessInput(new String[] { "lsview", "-cview", "-long" });
-    final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+  /**
+   * Lists the versions loaded into the snapshot view under the view path with one recursive "ls".
+   *
+   * @return version by the path relative to the view path, elements which are not loaded exactly as selected
+   * (hijacked, checked out, etc.) are not included
+   */
+  @NotNull
+  Map<String, String> getLoadedVersions() throws VcsException {
+    if (myLoadedVersions != null) return myLoadedVersions;
+    final Map<String, String> result = new HashMap<String, String>();
+    final String viewWholePath = getViewWholePath();
     try {
-      String line = reader.readLine();
-      while (line != null) {
-        if (line.startsWith("View attributes:")) {
-          return !line.contains("snapshot");
+      final InputStream inputStream = executeAndReturnProcessInput(new String[] { "ls", "-recurse", "-vob_only", "-long", viewWholePath });
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          final Pair<String, String> loadedVersion = CCParseUtil.readLoadedVersionFromLSFormat(line);
+          if (loadedVersion == null) continue;
+          final File file = new File(CCPathElement.normalizeSeparators(loadedVersion.first));
+          final String relativePath = FileUtil.getRelativePath(viewWholePath, (file.isAbsolute() ? file : new File(viewWholePath, file.getPath())).getPath(), File.separatorChar);
+          if (relativePath != null && !relativePath.startsWith("..")) {
+            result.put(relativePath, CCPathElement.normalizeSeparators(loadedVersion.second));
+          }
         }
-        line = reader.readLine();
+      } finally {
+        reader.close();
       }
+    } catch (IOException e) {
+      throw new VcsException(e);
     }
-    finally {
-      reader.close();
+    myLoadedVersions = result;
+    return result;
+  }
+
+  /**
+   * The view itself selects the versions the config spec resolves to, so they can be taken from one recursive listing
+   * instead of evaluating the config spec rules against the version tree of every element. This is only possible
+   * if the view shows the revision: the config spec does not refer to labels (they move without history events),
+   * the snapshot view was updated after the revision and only elements not changed after the revision are taken.
+   *
+   * @return versions selected by the view by the path relative to the view path, null if they cannot be used for the revision
+   */
+  @Nullable
+  private Map<String, String> getViewResolvedVersions(@NotNull final DateRevision revision) throws VcsException {
+    if (!TeamCityProperties.getBoolean(VIEW_RESOLVED_VERSIONS_PROPERTY) || myConfigSpec.hasLabelBasedVersionSelector()) return null;
+    if (!myViewIsDynamic && ourViewMetadata.getUpdateTime(getClearCaseViewPath()) <= revision.getDate().getTime()) {
+      LOG.debug("View " + getClearCaseViewPath() + " was not updated after " + revision.asDisplayString() + ", versions are resolved by the config spec");
+      return null;
     }
-    return true;
+    return getLoadedVersions();
+  }
+
+  /**
+   * @return the child with the version selected by the view, or with the version resolved by the config spec
+   * if the view does not know it or the element was changed after the processed revision
+   */
+  @Nullable
+  private DirectoryChildElement createViewResolvedElement(@NotNull final SimpleDirectoryChildElement child,
+                                                          @NotNull final String relativePath,
+                                                          @NotNull final Map<String, String> viewResolvedVersions) throws VcsException {
+    final String pathWithoutVersion = child.getPathWithoutVersion();
+    final String elementPath = extractElementPath(pathWithoutVersion);
+    final String version = viewResolvedVersions.get(relativePath);
+    if (version == null || myChangesToIgnore.containsKey(elementPath) || myDeletedVersions.containsKey(elementPath)) {
+      return child.createFullElement(this);
+    }
+    final String versionNumber = version.substring(version.lastIndexOf(File.separatorChar) + 1);
+    if (!Util.isDigit(versionNumber)) {
+      return child.createFullElement(this);
+    }
+    return new DirectoryChildElement(child.getType(), elementPath, Integer.parseInt(versionNumber),
+                                     pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR + version, version, pathWithoutVersion);
   }
 
   String getObjectRelativePathWithoutVersions(final String path, final boolean isFile) throws VcsException {
@@ -712,12 +976,13 @@ public class ClearCaseConnection {
     if (dateRevision == null) return;
 
     if (useCache && myCache != null) {
-      final CacheElement cache = myCache.getCache(dateRevision, getViewWholePath(), IncludeRule.createDefaultInstance(), myRoot);
+      // include rules are served as slices of one snapshot of the whole root
+      final CacheElement cache = myCache.getCache(dateRevision, myViewPath.getWholePathWithoutIncludeRule(), IncludeRule.createDefaultInstance(), myRoot);
       if (cache == null) {
         processAllVersions(version, versionProcessor, processRoot, false);
       }
       else {
-        cache.processAllVersions(versionProcessor, processRoot, this);
+        cache.processAllVersions(versionProcessor, processRoot, this, myViewPath.getIncludeRuleFrom());
       }
     }
     else {
@@ -729,9 +994,11 @@ public class ClearCaseConnection {
         versionProcessor.processDirectory(dirPath, "", getViewWholePath(), directoryVersion, this);
       }
 
+      myViewResolvedVersions = getViewResolvedVersions(dateRevision);
       try {
         processAllVersionsInternal(dirPath, versionProcessor, "./");
       } finally {
+        myViewResolvedVersions = null;
         if (processRoot) {
           versionProcessor.finishProcessingDirectory();
         }
@@ -740,13 +1007,48 @@ public class ClearCaseConnection {
 
   }
 
+  /**
+   * Processes the structure snapshot made with the previous config spec of the view exactly for the given version.
+   *
+   * @return false if there is no such snapshot
+   */
+  boolean processPreviousConfigSpecVersions(final Revision version, final VersionProcessor versionProcessor) throws VcsException {
+    final DateRevision dateRevision = version.getDateRevision();
+    if (dateRevision == null || myCache == null) return false;
+    final File snapshot = myCache.getPreviousConfigSpecSnapshot(dateRevision, myViewPath.getWholePathWithoutIncludeRule(), myRoot);
+    return snapshot != null && processSnapshot(snapshot, versionProcessor);
+  }
+
+  /**
+   * Processes the versions of the revision only if the structure cache already has the snapshot of the revision.
+   * @return false if there is no such snapshot
+   */
+  boolean processCachedVersions(final Revision version, final VersionProcessor versionProcessor) throws VcsException {
+    final DateRevision dateRevision = version.getDateRevision();
+    if (dateRevision == null || myCache == null) return false;
+    final File snapshot = myCache.getExistingSnapshot(dateRevision, myViewPath.getWholePathWithoutIncludeRule(), myRoot);
+    return snapshot != null && processSnapshot(snapshot, versionProcessor);
+  }
+
+  private boolean processSnapshot(@NotNull final File snapshot, final VersionProcessor versionProcessor) throws VcsException {
+    try {
+      new CacheProcessor(versionProcessor, this, snapshot, myViewPath.getIncludeRuleFrom()).processAllRevisions(false);
+      return true;
+    } catch (IOException e) {
+      LOG.debug("Cannot read snapshot " + snapshot.getPath() + ": " + e.getLocalizedMessage());
+      return false;
+    }
+  }
+
   public void processAllVersions(final String fullPath, String relPath, final VersionProcessor versionProcessor) throws VcsException {
     processAllVersionsInternal(fullPath, versionProcessor, relPath);
 
   }
 
   private void processAllVersionsInternal(final String dirPath, final VersionProcessor versionProcessor, String relativePath) throws VcsException {
-    final List<DirectoryChildElement> subfiles = CCParseUtil.readDirectoryVersionContent(this, dirPath);
+    final List<DirectoryChildElement> subfiles = myViewResolvedVersions == null
+                                                 ? CCParseUtil.readDirectoryVersionContent(this, dirPath)
+                                                 : readViewResolvedDirectoryContent(dirPath, relativePath, myViewResolvedVersions);
 
     for (DirectoryChildElement subfile : subfiles) {
       final String fileFullPath = CCPathElement.removeUnneededDots(subfile.getFullPath());
@@ -766,6 +1068,22 @@ public class ClearCaseConnection {
     }
   }
 
+  @NotNull
+  private List<DirectoryChildElement> readViewResolvedDirectoryContent(@NotNull final String dirPath,
+                                                                       @NotNull final String relativePath,
+                                                                       @NotNull final Map<String, String> viewResolvedVersions) throws VcsException {
+    final List<SimpleDirectoryChildElement> simpleChildren = getChildren(dirPath);
+    final List<DirectoryChildElement> children = new ArrayList<DirectoryChildElement>(simpleChildren.size());
+    for (SimpleDirectoryChildElement simpleChild : simpleChildren) {
+      final String childRelativePath = "./".equals(relativePath) ? simpleChild.getName() : relativePath + File.separator + simpleChild.getName();
+      final DirectoryChildElement child = createViewResolvedElement(simpleChild, childRelativePath, viewResolvedVersions);
+      if (child != null) {
+        children.add(child);
+      }
+    }
+    return children;
+  }
+
   private Version prepare(final DateRevision lastVersion) throws VcsException {
     collectChangesToIgnore(lastVersion);
     try {
@@ -798,22 +1116,48 @@ public class ClearCaseConnection {
   }
 
   protected void mklabel(final String version, final String pname, final String label, final boolean isDirPath) throws VcsException, IOException {
+    mklabel(myProcess, version, Collections.singletonList(insertDots(pname, isDirPath)), label);
+  }
+
+  /**
+   * Applies the label to the version of all the elements with one cleartool call.
+   * @param pnames paths of the elements prepared with {@link #insertDots}
+   */
+  static void mklabel(@NotNull final ClearCaseInteractiveProcess process,
+                      @NotNull final String version,
+                      @NotNull final List<String> pnames,
+                      @NotNull final String label) throws VcsException, IOException {
+    final List<String> command = new ArrayList<String>(pnames.size() + 5);
+    command.add("mklabel");
+    command.add("-replace");
+    command.add("-version");
+    command.add(version);
+    command.add(label);
+    command.addAll(pnames);
     try {
-      InputStream inputStream = executeAndReturnProcessInput(new String[] { "mklabel", "-replace", "-version", version, label, insertDots(pname, isDirPath) });
+      InputStream inputStream = process.executeAndReturnProcessInput(command.toArray(new String[command.size()]));
       try {
         inputStream.close();
       } catch (IOException e) {
         //ignore
       }
     } catch (IOException e) {
-      if (!e.getLocalizedMessage().contains("already on element"))
-        throw e;
+      // cleartool reports every element it failed to label and continues with the rest
+      final String message = e.getLocalizedMessage();
+      if (message == null || !message.contains("already on element")) throw e;
+      for (String line : message.split("[\r\n]+")) {
+        if (line.contains("Error") && !line.contains("already on element")) throw e;
+      }
     }
   }
 
   public ClearCaseFileAttr loadFileAttr(final String path) throws VcsException {
+    return loadFileAttr(myProcess, path);
+  }
+
+  static ClearCaseFileAttr loadFileAttr(@NotNull final ClearCaseInteractiveProcess process, final String path) throws VcsException {
     try {
-      final InputStream input = executeAndReturnProcessInput(new String[] { "describe", insertDots(cutOffVersion(path), false) });
+      final InputStream input = process.executeAndReturnProcessInput(new String[] { "describe", insertDots(cutOffVersion(path), false) });
       try {
         return ClearCaseFileAttr.readFrom(input);
       } finally {
@@ -828,7 +1172,7 @@ public class ClearCaseConnection {
     }
   }
 
-  private String cutOffVersion(final String path) {
+  private static String cutOffVersion(final String path) {
     final int versionSep = path.lastIndexOf(CCParseUtil.CC_VERSION_SEPARATOR);
     if (versionSep != -1) {
       return path.substring(0, versionSep + CCParseUtil.CC_VERSION_SEPARATOR.length());
@@ -997,20 +1341,18 @@ public class ClearCaseConnection {
     return subfiles;
   }
 
-  protected static boolean isLabelExists(@NotNull final ClearCaseInteractiveProcess process, @NotNull final String label) throws IOException {
-    final InputStream inputStream = process.executeAndReturnProcessInput(new String[] { "lstype", "-kind", "lbtype", "-short" });
-    final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+  /**
+   * @param vob the VOB to look for the label type in, the VOB of the working directory if null
+   */
+  protected static boolean isLabelExists(@NotNull final ClearCaseInteractiveProcess process, @NotNull final String label, @Nullable final String vob) {
+    final String labelType = "lbtype:" + label + (vob == null ? "" : "@" + vob);
     try {
-      String line;
-      while ((line = reader.readLine()) != null) {
-        if (line.equals(label)) {
-          return true;
-        }
-      }
-      return false;
+      process.executeAndReturnProcessInput(new String[] { "describe", "-short", labelType }).close();
+      return true;
     }
-    finally {
-      reader.close();
+    catch (IOException e) {
+      LOG.debug("Label type " + labelType + " is not found: " + e.getLocalizedMessage());
+      return false;
     }
   }
 
@@ -20,8 +20,11 @@ import com.intellij.execution.ExecutionException;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Ref;
 import com.intellij.util.Consumer;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
 import java.text.ParseException;
 import java.util.*;
 import java.util.regex.Pattern;
@@ -33,6 +36,8 @@ import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseValidation.Val
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpec;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecLoadRule;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecParseUtil;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.content.ElementContentCache;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.patch.PatchCache;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcessPool;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.structure.ClearCaseStructureCache;
@@ -63,11 +68,20 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   private static final Logger LOG = Logger.getInstance(ClearCaseSupport.class.getName());
 
   private static final boolean USE_CC_CACHE = !TeamCityProperties.getBoolean("clearcase.disable.caches");
+  private static final String MAX_CONTENT_SIZE_PROPERTY = "clearcase.content.max.size.mb";
+  private static final String PATCH_CACHE_ENABLED_PROPERTY = "clearcase.patch.cache.enabled";
   private static final Pattern COLON_OR_SEMICOLON_PATTERN = Pattern.compile("[;:]");
 
   private @Nullable ClearCaseStructureCache myCache;
+  private @Nullable ElementContentCache myContentCache;
+  private @Nullable PatchCache myPatchCache;
+  private final @NotNull PatchWarmer myPatchWarmer = new PatchWarmer(this);
+  private @Nullable LabelingQueue myLabelingQueue;
+  private final @NotNull LabelTypeCache myLabelTypes = new LabelTypeCache();
+  private final @NotNull ChangeProbe myChangeProbe = new ChangeProbe();
 
   private static ClearCaseSupport ourDefault;
+  private static final ViewRootCache ourViewRoots = new ViewRootCache();
 
   public static ClearCaseSupport getDefault() {
     return ourDefault;
@@ -88,6 +102,12 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   @Autowired
   public ClearCaseSupport(final @NotNull SBuildServer server, final @NotNull ServerPaths serverPaths, final @NotNull EventDispatcher<BuildServerListener> dispatcher) {
     this();
+    if (USE_CC_CACHE) {
+      myContentCache = new ElementContentCache(new File(new File(serverPaths.getCachesDir()), "clearCaseContent"));
+      if (TeamCityProperties.getBooleanOrTrue(PATCH_CACHE_ENABLED_PROPERTY)) {
+        myPatchCache = new PatchCache(new File(new File(serverPaths.getCachesDir()), "clearCasePatches"));
+      }
+    }
     File cachesRootDir = new File(new File(serverPaths.getCachesDir()), "clearCase");
     if (!cachesRootDir.exists() && !cachesRootDir.mkdirs()) {
       myCache = null;
@@ -97,6 +117,13 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     if (USE_CC_CACHE) {
       myCache.register(server, dispatcher);
     }
+    if (LabelingQueue.isEnabled()) {
+      myLabelingQueue = new LabelingQueue(new LabelingQueue.Labeler() {
+        public void doLabel(@NotNull final String label, @NotNull final String version, @NotNull final VcsRoot root, @NotNull final CheckoutRules checkoutRules) throws VcsException {
+          ClearCaseSupport.this.doLabel(label, version, root, checkoutRules);
+        }
+      }, new File(new File(serverPaths.getCachesDir()), "clearCaseLabelJobs"));
+    }
 
     server.registerExtension(BuildStartContextProcessor.class, this.getClass().getName(), this);
   }
@@ -129,9 +156,23 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     return new ViewPath(viewPath.getClearCaseViewPath(), vobRelativePath);
   }
 
+  /**
+   * Resolves the view path, the view root of the path may be taken from the cache.
+   */
   @NotNull
   public static ViewPath getViewPath(@NotNull final String viewPath) throws VcsException, IOException {
+    final String ccViewRoot = ourViewRoots.get(viewPath);
+    if (ccViewRoot == null) return resolveViewPath(viewPath);
+    return new ViewPath(ccViewRoot, getRelativePath(new File(ccViewRoot), new File(viewPath)));
+  }
+
+  /**
+   * Resolves the view path asking ClearCase for the view root, should be used when the view path is being edited.
+   */
+  @NotNull
+  public static ViewPath resolveViewPath(@NotNull final String viewPath) throws VcsException, IOException {
     final String ccViewRoot = ClearCaseConnection.getClearCaseViewRoot(viewPath);
+    ourViewRoots.put(viewPath, ccViewRoot);
     return new ViewPath(ccViewRoot, getRelativePath(new File(ccViewRoot), new File(viewPath)));
   }
 
@@ -185,11 +226,15 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     });
   }
 
-  private ChangedFilesProcessor createCollectingChangesFileProcessor(final MultiMap<CCModificationKey, VcsChange> key2changes, final Set<String> addFileActivities, final Set<VcsChange> zeroToOneChangedFiles, final ClearCaseConnection connection) {
+  private ChangedFilesProcessor createCollectingChangesFileProcessor(final MultiMap<CCModificationKey, VcsChange> key2changes, final Set<String> addFileActivities, final Set<VcsChange> zeroToOneChangedFiles, final ClearCaseConnection connection,
+                                                                     @Nullable final PatchWarmer.Changes warmUpChanges) {
     return new ChangedFilesProcessor() {
 
       public void processChangedDirectory(@NotNull final HistoryElement element) throws IOException, VcsException {
         LOG.debug("Processing changed directory " + element.getLogRepresentation());
+        if (warmUpChanges != null) {
+          warmUpChanges.addDirectory(element.getObjectName());
+        }
         CCParseUtil.processChangedDirectory(element, connection, createChangedStructureProcessor(element, key2changes, addFileActivities, connection));
       }
 
@@ -209,6 +254,10 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
             zeroToOneChangedFiles.add(change);
           }
 
+          if (warmUpChanges != null) {
+            warmUpChanges.addFile(element.getObjectName(), element.getObjectName() + CCParseUtil.CC_VERSION_SEPARATOR + element.getObjectVersion());
+          }
+
           LOG.debug("Change was detected: changed file " + element.getLogRepresentation());
         }
       }
@@ -315,29 +364,101 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   public void buildPatch(final VcsRoot root, final Revision fromVersion, final Revision toVersion, final PatchBuilder builder, final IncludeRule includeRule) throws IOException, VcsException {
     withConnection(root, includeRule, true, null, new ConnectionProcessor() {
       public void process(@NotNull final ClearCaseConnection connection) throws VcsException, IOException {
-        buildPatchForConnection(builder, fromVersion, toVersion, connection);
+        final PatchCache patchCache = myPatchCache;
+        // a patch built right after the config spec change differs from the patch between the same revisions built later,
+        // a label may be moved without changing the revisions or the config spec, so such patches are cached only while the labels are tracked
+        if (patchCache == null || connection.isConfigSpecWasChanged() || !CCPatchProvider.isPatchReproducible(fromVersion) ||
+            connection.getConfigSpec().hasLabelBasedVersionSelector() && connection.getLabelsFingerprint() == null) {
+          buildPatchForConnection(builder, fromVersion, toVersion, connection);
+          return;
+        }
+        final String key = PatchCache.createKey(root.getId(), root.getProperties().hashCode(), includeRule.getFrom() + "=>" + includeRule.getTo(),
+                                                fromVersion == null ? null : fromVersion.asString(), toVersion.asString(),
+                                                connection.getConfigSpec().hashCode(), connection.getLabelsFingerprint());
+        patchCache.buildPatch(key, builder, new PatchCache.PatchProducer() {
+          public void buildPatch(@NotNull final PatchBuilder cachingBuilder) throws IOException, VcsException {
+            buildPatchForConnection(cachingBuilder, fromVersion, toVersion, connection);
+          }
+        });
       }
     });
   }
 
   private void buildPatchForConnection(PatchBuilder builder, Revision fromVersion, Revision toVersion, ClearCaseConnection connection) throws IOException, VcsException {
     try {
-      final boolean useCache = USE_CC_CACHE && !connection.getConfigSpec().hasLabelBasedVersionSelector();
-      new CCPatchProvider(connection, useCache).buildPatch(builder, fromVersion, toVersion);
+      new CCPatchProvider(connection, isStructureCacheUsed(connection), myContentCache).buildPatch(builder, fromVersion, toVersion);
     }
     catch (final ExecutionException e) {
       throw new VcsException(e);
     }
   }
   
-  private static byte[] getFileContent(final ClearCaseConnection connection, final String filePath) throws VcsException {
+  boolean isStructureCacheUsed(@NotNull final ClearCaseConnection connection) {
+    // snapshots of a label-based config spec are valid only while the labels are tracked
+    return USE_CC_CACHE && (!connection.getConfigSpec().hasLabelBasedVersionSelector() || LabelMoveTracker.isEnabled());
+  }
+
+  /**
+   * Loads the version content into the content cache unless it is already there.
+   */
+  void warmUpContent(@NotNull final ClearCaseConnection connection, @NotNull final String filePath) {
+    if (myContentCache == null) return;
+    try {
+      // the history gives the element path selected by the view, the cache needs the directory versions
+      final String path = new File(connection.getViewWholePath()).getParent() + File.separator + connection.getObjectRelativePathWithVersions(filePath, true);
+      if (!ElementContentCache.isCacheable(path, connection.getViewWholePath()) || myContentCache.contains(path)) return;
+      loadFileContent(connection, path, false);
+    }
+    catch (VcsException e) {
+      LOG.debug("Cannot load content of " + filePath + ": " + e.getLocalizedMessage());
+    }
+  }
+
+  private byte[] getFileContent(final ClearCaseConnection connection, final String filePath) throws VcsException {
+    //noinspection ConstantConditions
+    return loadFileContent(connection, filePath, true);
+  }
+
+  /**
+   * @param returnContent false if the content is only put into the content cache, it is not read into the heap then
+   * @return the content or null if it is not requested
+   */
+  @Nullable
+  private byte[] loadFileContent(final ClearCaseConnection connection, final String filePath, final boolean returnContent) throws VcsException {
+    // getContent() has to return the whole content, the heap is guarded by the size limit only if it is set
+    final int maxSizeMb = TeamCityProperties.getInteger(MAX_CONTENT_SIZE_PROPERTY, 0);
+    final long maxSize = maxSizeMb > 0 ? maxSizeMb * 1024L * 1024L : Long.MAX_VALUE;
     try {
-      final File tempFile = FileUtil.createTempFile("cc", "tmp");
+      final boolean cacheable = myContentCache != null && ElementContentCache.isCacheable(filePath, connection.getViewWholePath());
+      if (cacheable && returnContent) {
+        final byte[] cachedContent = myContentCache.getBytes(filePath, maxSize);
+        if (cachedContent != null) {
+          return cachedContent;
+        }
+      }
+      // a cacheable content is loaded right into the cache directory and is adopted by the cache without copying
+      final File tempFile = cacheable ? myContentCache.createIncomingFile() : FileUtil.createTempFile("cc", "tmp");
       FileUtil.delete(tempFile);
       try {
         connection.loadFileContent(tempFile, filePath);
         if (tempFile.isFile()) {
-          return FileUtil.loadFileBytes(tempFile);
+          if (!returnContent) {
+            if (cacheable) {
+              myContentCache.adopt(filePath, tempFile, ElementContentCache.calculateHash(tempFile), null);
+            }
+            return null;
+          }
+          if (tempFile.length() > maxSize) {
+            throw new VcsException("Content of " + filePath + " is too large: " + tempFile.length() + " bytes, the limit is " + maxSize +
+                                   " bytes (internal property '" + MAX_CONTENT_SIZE_PROPERTY + "')");
+          }
+          final byte[] content = FileUtil.loadFileBytes(tempFile);
+          if (cacheable) {
+            final MessageDigest digest = ElementContentCache.createDigest();
+            digest.update(content);
+            myContentCache.adopt(filePath, tempFile, ElementContentCache.toHex(digest.digest()), null);
+          }
+          return content;
         } else {
           throw new VcsException("Cannot get content of " + filePath);
         }
@@ -406,7 +527,7 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   }
 
   @NotNull
-  private static byte[] doGetContent(@NotNull final String filePath, @NotNull final ClearCaseConnection connection) throws VcsException {
+  private byte[] doGetContent(@NotNull final String filePath, @NotNull final ClearCaseConnection connection) throws VcsException {
     final String path = new File(connection.getViewWholePath()).getParent() + File.separator +
                         connection.getObjectRelativePathWithVersions(connection.getViewWholePath() + File.separator + filePath, true);
     return getFileContent(connection, path);
@@ -449,6 +570,12 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   @Override
   @SuppressWarnings("deprecation")
   public String getCurrentVersion(@NotNull final VcsRoot root) throws VcsException {
+    final String unchangedVersion = myChangeProbe.getCurrentVersionIfUnchanged(root);
+    if (unchangedVersion != null) {
+      LOG.debug("No versions were created under the path of " + root.getName() + ", the current version is still " + unchangedVersion);
+      return unchangedVersion;
+    }
+    final long computeTime = System.currentTimeMillis();
     final Ref<String> result = new Ref<String>();
     try {
       withConnection(root, IncludeRule.createDefaultInstance(), null, new ConnectionProcessor() {
@@ -460,6 +587,7 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     catch (IOException e) {
       throw new VcsException(e);
     }
+    myChangeProbe.currentVersionComputed(root, result.get(), computeTime);
     return result.get();
   }
 
@@ -582,16 +710,23 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
 
   @NotNull
   public Collection<String> mapFullPath(@NotNull final VcsRootEntry rootEntry, @NotNull final String fullPath) {
-    final ViewPath viewPath;
+    final ViewPath viewPath = getViewPathToMap(rootEntry);
+    return viewPath == null ? Collections.<String>emptySet() : mapFullPath(viewPath, fullPath);
+  }
 
+  @Nullable
+  private static ViewPath getViewPathToMap(@NotNull final VcsRootEntry rootEntry) {
     try {
-      viewPath = getViewPath(rootEntry.getVcsRoot());
+      return getViewPath(rootEntry.getVcsRoot());
     }
     catch (final Exception e) {
       LOG.debug("CC.MapFullPath: View path not defined: " + e.getLocalizedMessage());
-      return Collections.emptySet();
+      return null;
     }
+  }
 
+  @NotNull
+  private static Collection<String> mapFullPath(@NotNull final ViewPath viewPath, @NotNull final String fullPath) {
     final File viewPathFile = cutOffVobsDir(viewPath.getWholePath(), viewPath);
     if (viewPathFile == null) { // actually impossible
       LOG.debug("CC.MapFullPath: Unknown error");
@@ -667,11 +802,12 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   public List<ModificationData> collectChanges(final VcsRoot root, final Revision fromVersion, final Revision currentVersion, final IncludeRule includeRule) throws VcsException {
     LOG.debug(String.format("Attempt connect to '%s'", root.describe(true)));
     final Ref<List<ModificationData>> result = new Ref<List<ModificationData>>();
+    final PatchWarmer.Changes warmUpChanges = currentVersion == null ? null : PatchWarmer.createChanges();
     try {
       withConnection(root, includeRule, null, new ConnectionProcessor() {
         public void process(@NotNull final ClearCaseConnection connection) throws VcsException {
           try {
-            result.set(collectChangesWithConnection(root, fromVersion, currentVersion, connection));
+            result.set(collectChangesWithConnection(root, fromVersion, currentVersion, connection, warmUpChanges));
           }
           catch (VcsException e) {
             LOG.debug(String.format("Could not establish connection: %s", e.getMessage()));
@@ -683,17 +819,21 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     catch (IOException e) {
       throw new VcsException(e);
     }
+    if (warmUpChanges != null && !warmUpChanges.isEmpty()) {
+      myPatchWarmer.schedule(root, includeRule, currentVersion, warmUpChanges);
+    }
     return result.get();
   }
 
-  private List<ModificationData> collectChangesWithConnection(VcsRoot root, Revision fromVersion, Revision currentVersion, ClearCaseConnection connection) throws VcsException {
+  private List<ModificationData> collectChangesWithConnection(VcsRoot root, Revision fromVersion, Revision currentVersion, ClearCaseConnection connection,
+                                                              @Nullable PatchWarmer.Changes warmUpChanges) throws VcsException {
     try {
       final ArrayList<ModificationData> list = new ArrayList<ModificationData>();
       final MultiMap<CCModificationKey, VcsChange> key2changes = new MultiMap<CCModificationKey, VcsChange>();
       final Set<String> addFileActivities = new HashSet<String>();
       final Set<VcsChange> zeroToOneChangedFiles = new HashSet<VcsChange>();
 
-      final ChangedFilesProcessor fileProcessor = createCollectingChangesFileProcessor(key2changes, addFileActivities, zeroToOneChangedFiles, connection);
+      final ChangedFilesProcessor fileProcessor = createCollectingChangesFileProcessor(key2changes, addFileActivities, zeroToOneChangedFiles, connection, warmUpChanges);
 
       try {
         LOG.debug("Collecting changes...");
@@ -735,24 +875,54 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
 
   @NotNull
   public String label(@NotNull final String label, @NotNull final String version, @NotNull final VcsRoot root, @NotNull final CheckoutRules checkoutRules) throws VcsException {
+    final LabelingQueue labelingQueue = myLabelingQueue;
+    if (labelingQueue != null && LabelingQueue.isEnabled()) {
+      labelingQueue.enqueue(label, version, root, checkoutRules);
+      return label;
+    }
+    doLabel(label, version, root, checkoutRules);
+    return label;
+  }
+
+  void doLabel(@NotNull final String label, @NotNull final String version, @NotNull final VcsRoot root, @NotNull final CheckoutRules checkoutRules) throws VcsException {
+    final File rootCacheDir = myCache == null ? null : myCache.getCacheDir(root, true);
     try {
       final Revision revision = Revision.fromNotNullString(version);
 
-      createLabel(label, root);
+      if (createLabel(label, root)) {
+        // the label type is new, possibly after being removed from the VOB, so the label is applied to all elements
+        IncrementalLabeling.clearBaselines(rootCacheDir, label);
+      }
 
-      final VersionProcessor labeler = getClearCaseLabeler(label);
-      final ConnectionProcessor childrenProcessor = getChildrenProcessor(revision, labeler);
+      final BatchLabeler labeler = new BatchLabeler(label, getViewPath(root).getWholePath());
 
+      try {
+        for (IncludeRule includeRule : checkoutRules.getRootIncludeRules()) {
+          final Revision baseline = IncrementalLabeling.getBaseline(rootCacheDir, label, includeRule);
+          withConnection(root, includeRule, null, getChildrenProcessor(revision, baseline, labeler));
+          withRootConnection(root, getParentsProcessor(revision, labeler, createPath(root, includeRule)));
+        }
+        labeler.finish();
+      }
+      finally {
+        labeler.dispose();
+      }
       for (IncludeRule includeRule : checkoutRules.getRootIncludeRules()) {
-        withConnection(root, includeRule, null, childrenProcessor);
-        withRootConnection(root, getParentsProcessor(revision, labeler, createPath(root, includeRule)));
+        IncrementalLabeling.setBaseline(rootCacheDir, label, includeRule, revision);
       }
-      return label;
+    }
+    catch (VcsException e) {
+      // the cached label type could be removed from the VOB, it is created again on the next attempt,
+      // the label may be left on a part of the elements, so it is applied to all of them next time
+      myLabelTypes.removeEverywhere(label);
+      IncrementalLabeling.clearBaselines(rootCacheDir, label);
+      throw e;
     }
     catch (ParseException e) {
       throw new VcsException(e);
     }
     catch (IOException e) {
+      IncrementalLabeling.clearBaselines(rootCacheDir, label);
       throw new VcsException(e);
     }
   }
@@ -776,10 +946,11 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     };
   }
 
-  private ConnectionProcessor getChildrenProcessor(final Revision version, final VersionProcessor labeler) {
+  private ConnectionProcessor getChildrenProcessor(final Revision version, @Nullable final Revision baseline, final VersionProcessor labeler) {
     return new ConnectionProcessor() {
       public void process(@NotNull final ClearCaseConnection connection) throws VcsException {
-        connection.processAllVersions(version, labeler, true, true);
+        final VersionProcessor changedVersionsLabeler = baseline == null ? null : IncrementalLabeling.createChangedVersionsLabeler(connection, baseline, labeler);
+        connection.processAllVersions(version, changedVersionsLabeler == null ? labeler : changedVersionsLabeler, true, true);
       }
     };
   }
@@ -788,61 +959,33 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     doWithConnection(getRootPath(root), root, false, processor);
   }
 
-  private VersionProcessor getClearCaseLabeler(@NotNull final String label) {
-    return new VersionProcessor() {
-      public void processFile(final String fileFullPath, final String relPath, final String pname, final String version, final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) throws VcsException {
-        try {
-          clearCaseConnection.mklabel(version, fileFullPath, label, false);
-        } catch (IOException e) {
-          throw new VcsException(e);
-        }
-      }
-
-      public void processDirectory(final String fileFullPath, final String relPath, final String pname, final String version, final ClearCaseConnection clearCaseConnection) throws VcsException {
-        try {
-          clearCaseConnection.mklabel(version, fileFullPath, label, true);
-        } catch (IOException e) {
-          throw new VcsException(e);
-        }
-      }
-
-      public void finishProcessingDirectory() {
-
-      }
-    };
-  }
-
-  private void createLabel(final String label, final VcsRoot root) throws VcsException {
+  /**
+   * Creates the label type unless it is known to exist.
+   * @return true if the label type did not exist
+   */
+  private boolean createLabel(final String label, final VcsRoot root) throws VcsException {
     try {
-      ClearCaseInteractiveProcessPool.doWithProcess(getViewPath(root).getWholePath(), new ClearCaseInteractiveProcessPool.ProcessRunnable() {
-        public void run(@NotNull final ClearCaseInteractiveProcess process) throws VcsException {
-          final boolean useGlobalLabel = "true".equals(root.getProperty(Constants.USE_GLOBAL_LABEL));
+      final String workingDirectory = getViewPath(root).getWholePath();
+      final boolean useGlobalLabel = "true".equals(root.getProperty(Constants.USE_GLOBAL_LABEL));
+      final String globalLabelsVob = useGlobalLabel ? root.getProperty(Constants.GLOBAL_LABELS_VOB) : null;
+      final String knownVob = globalLabelsVob != null ? "@" + globalLabelsVob : myLabelTypes.getVobTag(workingDirectory);
+      if (knownVob != null && myLabelTypes.contains(knownVob, label)) {
+        return false;
+      }
+      return ClearCaseInteractiveProcessPool.doWithProcess(workingDirectory, new ClearCaseInteractiveProcessPool.ProcessComputable<Boolean>() {
+        public Boolean compute(@NotNull final ClearCaseInteractiveProcess process) throws VcsException {
+          final String vob = knownVob != null ? knownVob : getVobTag(process, workingDirectory);
+          if (myLabelTypes.contains(vob, label)) return false;
+          final boolean exists = ClearCaseConnection.isLabelExists(process, label, globalLabelsVob);
           try {
-            final List<String> parameters = new ArrayList<String>();
-            parameters.add("mklbtype");
-            if (useGlobalLabel) {
-              parameters.add("-global");
-            }
-            if (ClearCaseConnection.isLabelExists(process, label)) {
-              parameters.add("-replace");
-            }
-            parameters.add("-c");
-            parameters.add("Label created by TeamCity");
-            if (useGlobalLabel) {
-              final String globalLabelsVob = root.getProperty(Constants.GLOBAL_LABELS_VOB);
-              parameters.add(label + "@" + globalLabelsVob);
-            } else {
-              parameters.add(label);
-            }
-            try {
-              process.executeAndReturnProcessInput(makeArray(parameters)).close();
-            } catch (final IOException ignore) {}
+            createLabelType(process, label, useGlobalLabel, globalLabelsVob, exists);
+            myLabelTypes.add(vob, label);
           }
-          catch (final Exception e) {
-            if (!e.getLocalizedMessage().contains("already exists")) {
-              throw new VcsException(e);//e;
-            }
+          catch (final IOException e) {
+            // as before, a failure to create the label type is reported by mklabel itself
+            LOG.debug("Cannot create label type " + label + ": " + e.getLocalizedMessage());
           }
+          return !exists;
         }
       });
     }
@@ -851,6 +994,55 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     }
   }
 
+  /**
+   * @return the tag of the VOB the view path belongs to, the path itself if it cannot be described
+   */
+  @NotNull
+  private String getVobTag(@NotNull final ClearCaseInteractiveProcess process, @NotNull final String workingDirectory) {
+    try {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(process.executeAndReturnProcessInput(new String[] {
+        "describe", "-fmt", "%n", "vob:."
+      })));
+      try {
+        final String vobTag = reader.readLine();
+        if (vobTag != null && vobTag.trim().length() > 0) {
+          myLabelTypes.putVobTag(workingDirectory, vobTag.trim());
+          return vobTag.trim();
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch (final IOException e) {
+      LOG.debug("Cannot describe the VOB of " + workingDirectory + ": " + e.getLocalizedMessage());
+    }
+    return workingDirectory;
+  }
+
+  private static void createLabelType(@NotNull final ClearCaseInteractiveProcess process,
+                                      @NotNull final String label,
+                                      final boolean useGlobalLabel,
+                                      @Nullable final String globalLabelsVob,
+                                      final boolean exists) throws IOException {
+    final List<String> parameters = new ArrayList<String>();
+    parameters.add("mklbtype");
+    if (useGlobalLabel) {
+      parameters.add("-global");
+    }
+    if (exists) {
+      parameters.add("-replace");
+    }
+    parameters.add("-c");
+    parameters.add("Label created by TeamCity");
+    if (useGlobalLabel) {
+      parameters.add(label + "@" + globalLabelsVob);
+    } else {
+      parameters.add(label);
+    }
+    process.executeAndReturnProcessInput(makeArray(parameters)).close();
+  }
+
   @NotNull
   public static String[] makeArray(@NotNull final List<String> parameters) {
     final String[] array = new String[parameters.size()];
@@ -869,7 +1061,7 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
       final ViewPath viewPath = getViewPath(root);
       return ClearCaseInteractiveProcessPool.doWithProcess(viewPath.getWholePath(), new ClearCaseInteractiveProcessPool.ProcessComputable<Boolean>() {
         public Boolean compute(@NotNull final ClearCaseInteractiveProcess process) throws IOException, VcsException {
-          final ConfigSpec spec = ConfigSpecParseUtil.getConfigSpec(viewPath, process);
+          final ConfigSpec spec = getConfigSpec(viewPath, process);
           // as far we still cannot detect label moving,
           // have to use all resources set for the patch creation
           return spec != null && spec.hasLabelBasedVersionSelector();
@@ -1018,11 +1210,20 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   public static SortedSet<String> detectBranches(@NotNull final ViewPath viewPath) throws VcsException, IOException {
     return ClearCaseInteractiveProcessPool.doWithProcess(viewPath.getWholePath(), new ClearCaseInteractiveProcessPool.ProcessComputable<SortedSet<String>>() {
       public SortedSet<String> compute(@NotNull final ClearCaseInteractiveProcess process) throws IOException, VcsException {
-        return ConfigSpecParseUtil.getConfigSpec(viewPath, process).getBranches();
+        return getConfigSpec(viewPath, process).getBranches();
       }
     });
   }
 
+  /**
+   * @return the config spec of the view, parsed once for all the callers until it changes
+   */
+  @NotNull
+  private static ConfigSpec getConfigSpec(@NotNull final ViewPath viewPath, @NotNull final ClearCaseInteractiveProcess process) throws IOException, VcsException {
+    final ViewMetadataCache.ViewMetadata metadata = ClearCaseConnection.getViewMetadata(viewPath.getClearCaseViewPath(), process);
+    return metadata == null ? ConfigSpecParseUtil.getConfigSpec(viewPath, process) : metadata.getConfigSpec(viewPath);
+  }
+
   public static interface ConnectionProcessor {
     void process(@NotNull ClearCaseConnection connection) throws VcsException, IOException;
   }
@@ -1037,20 +1238,30 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
           final File viewRoot = new File(viewPath);
           if (viewRoot.exists()) {
             try {
-              final CCSnapshotView ccView = CCSnapshotView.init(viewRoot);
-              LOG.debug(String.format("The \"%s\" view initialized", ccView));
-              final StringBuffer specsBuffer = new StringBuffer();
-              for (String spec : ccView.getConfigSpec()) {
-                specsBuffer.append(spec).append("\n");
+              final ViewMetadataCache.ViewMetadata metadata = getViewMetadata(viewPath);
+              final String configSpecParameterValue;
+              final String originalViewTag;
+              if (metadata != null && metadata.getTag() != null) {
+                configSpecParameterValue = metadata.getConfigSpecText();
+                originalViewTag = metadata.getTag();
+              }
+              else {
+                final CCSnapshotView ccView = CCSnapshotView.init(viewRoot);
+                LOG.debug(String.format("The \"%s\" view initialized", ccView));
+                final StringBuffer specsBuffer = new StringBuffer();
+                for (String spec : ccView.getConfigSpec()) {
+                  specsBuffer.append(spec).append("\n");
+                }
+                configSpecParameterValue = specsBuffer.toString();
+                originalViewTag = ccView.getTag();
               }
               //pass config spec to agents
               final String configSpecParameterName = getConfigSpecParameterName(entry.getVcsRoot());
-              final String configSpecParameterValue = specsBuffer.toString();
               context.addSharedParameter(configSpecParameterName, configSpecParameterValue);
               LOG.debug(String.format("added SharedParameter: %s=\"%s\"", configSpecParameterName, configSpecParameterValue));
               //pass tag to agents
               final String originalViewTagParameterName = getOriginalViewTagParameterName(entry.getVcsRoot());
-              String originalViewTagParameterValue = ccView.getTag().trim();
+              String originalViewTagParameterValue = originalViewTag.trim();
               context.addSharedParameter(originalViewTagParameterName, originalViewTagParameterValue);
               LOG.debug(String.format("added SharedParameter: %s=\"%s\"", originalViewTagParameterName, originalViewTagParameterValue));
             } catch (CCException e) {
@@ -1066,6 +1277,24 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     }
   }
 
+  /**
+   * @return metadata of the view from the cache shared with the connections, null if it cannot be read
+   */
+  @Nullable
+  private static ViewMetadataCache.ViewMetadata getViewMetadata(@NotNull final String ccViewPath) {
+    try {
+      return ClearCaseInteractiveProcessPool.doWithProcess(ccViewPath, new ClearCaseInteractiveProcessPool.ProcessComputable<ViewMetadataCache.ViewMetadata>() {
+        public ViewMetadataCache.ViewMetadata compute(@NotNull final ClearCaseInteractiveProcess process) throws IOException, VcsException {
+          return ClearCaseConnection.getViewMetadata(CCPathElement.normalizePath(ccViewPath), process);
+        }
+      });
+    }
+    catch (final Exception e) {
+      LOG.debug("Cannot read metadata of view " + ccViewPath + ": " + e.getLocalizedMessage());
+      return null;
+    }
+  }
+
   public static String getOriginalViewTagParameterName(VcsRoot root) {
     return String.format("%s", String.format(Constants.AGENT_SOURCE_VIEW_TAG_PROP_PATTERN, root.getId()));
   }
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.content.ElementContentCache;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcessPool;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.patches.PatchBuilder;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Fetches file contents with several cleartool sessions concurrently while the patch is written by the calling thread
+ * strictly in the order the items were added. The caller is blocked when too many items or fetched bytes wait for writing.
+ */
+class ContentFetchPipeline {
+  private static final Logger LOG = Logger.getLogger(ContentFetchPipeline.class);
+
+  private final PatchBuilder myBuilder;
+  private final String myWorkingDirectory;
+  private final boolean myViewIsDynamic;
+  private final ElementContentCache myContentCache;
+  private final int myFetcherCount;
+  private final int myMaxPendingItems;
+  private final long myMaxPendingBytes;
+  private final BlockingQueue<FetchTask> myFetchQueue = new LinkedBlockingQueue<FetchTask>();
+  private final LinkedList<PatchItem> myPendingItems = new LinkedList<PatchItem>();
+  private final AtomicLong myPendingBytes = new AtomicLong();
+  private final FetchTask myStopTask = new FetchTask("", "", "");
+  private ExecutorService myFetchers;
+
+  ContentFetchPipeline(@NotNull final PatchBuilder builder,
+                       @NotNull final String workingDirectory,
+                       final boolean viewIsDynamic,
+                       @Nullable final ElementContentCache contentCache,
+                       final int fetcherCount,
+                       final long maxPendingBytes) {
+    myBuilder = builder;
+    myWorkingDirectory = workingDirectory;
+    myViewIsDynamic = viewIsDynamic;
+    myContentCache = contentCache;
+    myFetcherCount = fetcherCount;
+    myMaxPendingItems = fetcherCount * 16;
+    myMaxPendingBytes = maxPendingBytes;
+  }
+
+  /**
+   * Schedules fetching of the file version, the file is written to the patch after all the previously added items.
+   */
+  void addFile(@NotNull final String versionPath, @NotNull final String pathWithoutVersion, @NotNull final String relativePath) throws VcsException {
+    startFetchers();
+    final FetchTask task = new FetchTask(versionPath, pathWithoutVersion, relativePath);
+    add(task);
+    myFetchQueue.add(task);
+    writeReadyItems();
+  }
+
+  /**
+   * Schedules a patch operation which is performed after all the previously added items are written.
+   */
+  void addAction(@NotNull final PatchAction action) throws VcsException {
+    if (myPendingItems.isEmpty()) {
+      apply(action);
+    }
+    else {
+      add(new PatchItem() {
+        @Override
+        void write(@NotNull final PatchBuilder builder) throws VcsException {
+          apply(action);
+        }
+      });
+    }
+  }
+
+  /**
+   * Writes all the pending items to the patch.
+   */
+  void finish() throws VcsException {
+    while (!myPendingItems.isEmpty()) {
+      writeFirst();
+    }
+  }
+
+  void dispose() {
+    if (myFetchers != null) {
+      for (int i = 0; i < myFetcherCount; i++) {
+        myFetchQueue.add(myStopTask);
+      }
+      myFetchers.shutdown();
+      myFetchers = null;
+    }
+    for (PatchItem item : myPendingItems) {
+      if (item instanceof FetchTask) {
+        ((FetchTask)item).myCancelled = true;
+      }
+    }
+    for (PatchItem item : myPendingItems) {
+      if (item instanceof FetchTask) {
+        ((FetchTask)item).awaitAndDelete();
+      }
+    }
+    myPendingItems.clear();
+  }
+
+  private void apply(@NotNull final PatchAction action) throws VcsException {
+    try {
+      action.apply(myBuilder);
+    } catch (IOException e) {
+      throw new VcsException(e);
+    }
+  }
+
+  private void add(@NotNull final PatchItem item) throws VcsException {
+    myPendingItems.add(item);
+    while (!myPendingItems.isEmpty() && (myPendingItems.size() > myMaxPendingItems || myPendingBytes.get() > myMaxPendingBytes)) {
+      writeFirst();
+    }
+  }
+
+  private void writeReadyItems() throws VcsException {
+    while (!myPendingItems.isEmpty() && myPendingItems.getFirst().isReady()) {
+      writeFirst();
+    }
+  }
+
+  private void writeFirst() throws VcsException {
+    myPendingItems.removeFirst().write(myBuilder);
+  }
+
+  private void startFetchers() {
+    if (myFetchers != null) return;
+    myFetchers = ExecutorsFactory.newFixedDaemonExecutor("ClearCase content fetch", myFetcherCount);
+    for (int i = 0; i < myFetcherCount; i++) {
+      myFetchers.submit(new Runnable() {
+        public void run() {
+          runFetcher();
+        }
+      });
+    }
+  }
+
+  private void runFetcher() {
+    try {
+      ClearCaseInteractiveProcessPool.doWithProcess(myWorkingDirectory, new ClearCaseInteractiveProcessPool.ProcessRunnable() {
+        public void run(@NotNull final ClearCaseInteractiveProcess process) throws IOException, VcsException {
+          FetchTask task;
+          while ((task = takeTask()) != myStopTask) {
+            task.fetch(process);
+          }
+        }
+      });
+    } catch (Exception e) {
+      LOG.warn("Cannot start cleartool session for fetching file contents: " + e.getLocalizedMessage());
+      FetchTask task;
+      while ((task = takeTask()) != myStopTask) {
+        task.fail(e);
+      }
+    }
+  }
+
+  @NotNull
+  private FetchTask takeTask() {
+    try {
+      return myFetchQueue.take();
+    } catch (InterruptedException e) {
+      return myStopTask;
+    }
+  }
+
+  interface PatchAction {
+    void apply(@NotNull PatchBuilder builder) throws IOException, VcsException;
+  }
+
+  private static abstract class PatchItem {
+    boolean isReady() {
+      return true;
+    }
+
+    abstract void write(@NotNull PatchBuilder builder) throws VcsException;
+  }
+
+  private class FetchTask extends PatchItem {
+    private final String myVersionPath;
+    private final String myPathWithoutVersion;
+    private final String myRelativePath;
+    private final CountDownLatch myDone = new CountDownLatch(1);
+    private volatile File myFile;
+    private volatile ClearCaseFileAttr myFileAttr;
+    private volatile Exception myError;
+    private volatile boolean myCancelled;
+    private volatile boolean myCacheable;
+    private volatile long myCountedBytes;
+
+    private FetchTask(final String versionPath, final String pathWithoutVersion, final String relativePath) {
+      myVersionPath = versionPath;
+      myPathWithoutVersion = pathWithoutVersion;
+      myRelativePath = relativePath;
+    }
+
+    void fetch(@NotNull final ClearCaseInteractiveProcess process) {
+      if (myCancelled) {
+        myDone.countDown();
+        return;
+      }
+      try {
+        if (myContentCache != null) {
+          // a copy, the cached file may be evicted while the task waits for writing
+          final File file = FileUtil.createTempFile("cc", "temp");
+          myFile = file;
+          if (myContentCache.copyFile(myVersionPath, file)) {
+            final ClearCaseFileAttr cachedAttr = myContentCache.getFileAttr(myVersionPath);
+            myFileAttr = cachedAttr != null ? cachedAttr : ClearCaseConnection.loadFileAttr(process, myPathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR);
+            countBytes(file);
+            return;
+          }
+          FileUtil.delete(file);
+        }
+        myCacheable = myContentCache != null && ElementContentCache.isCacheable(myVersionPath, myWorkingDirectory);
+        final File file = myCacheable ? myContentCache.createIncomingFile() : FileUtil.createTempFile("cc", "temp");
+        FileUtil.delete(file);
+        myFile = file;
+        ClearCaseConnection.loadFileContent(process, file, myVersionPath, myViewIsDynamic);
+        if (file.isFile()) {
+          myFileAttr = ClearCaseConnection.loadFileAttr(process, myPathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR);
+          countBytes(file);
+        }
+      } catch (Exception e) {
+        myError = e;
+      } finally {
+        myDone.countDown();
+      }
+    }
+
+    void fail(@NotNull final Exception e) {
+      myError = e;
+      myDone.countDown();
+    }
+
+    void awaitAndDelete() {
+      try {
+        myDone.await();
+      } catch (InterruptedException e) {
+        //ignore
+      }
+      deleteFile();
+    }
+
+    @Override
+    boolean isReady() {
+      return myDone.getCount() == 0;
+    }
+
+    @Override
+    void write(@NotNull final PatchBuilder builder) throws VcsException {
+      try {
+        myDone.await();
+      } catch (InterruptedException e) {
+        throw new VcsException(e);
+      }
+      try {
+        if (myError instanceof IOException) {
+          CCPatchProvider.processLoadError(builder, myVersionPath, myRelativePath, (IOException)myError);
+        }
+        else if (myError instanceof VcsException) {
+          throw (VcsException)myError;
+        }
+        else if (myError != null) {
+          throw new VcsException(myError);
+        }
+        else if (myFileAttr != null) {
+          final MessageDigest digest = myCacheable ? ElementContentCache.createDigest() : null;
+          CCPatchProvider.writeFile(builder, myRelativePath, myFile, myFileAttr, digest);
+          if (digest != null) {
+            uncountBytes();
+            myContentCache.adopt(myVersionPath, myFile, ElementContentCache.toHex(digest.digest()), myFileAttr);
+            myFile = null;
+          }
+        }
+      } finally {
+        deleteFile();
+      }
+    }
+
+    private void deleteFile() {
+      uncountBytes();
+      final File file = myFile;
+      if (file != null) {
+        FileUtil.delete(file);
+        myFile = null;
+      }
+    }
+
+    private void countBytes(@NotNull final File file) {
+      myCountedBytes = file.length();
+      myPendingBytes.addAndGet(myCountedBytes);
+    }
+
+    /**
+     * Called by the writing thread only, after the fetch is done.
+     */
+    private void uncountBytes() {
+      myPendingBytes.addAndGet(-myCountedBytes);
+      myCountedBytes = 0;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Stack;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.Hash;
+import jetbrains.buildServer.vcs.IncludeRule;
+import jetbrains.buildServer.vcs.VcsException;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Applying a label again only has to move it on the elements whose versions changed since the label was applied
+ * the last time: all other elements already carry the label on the right versions.
+ * The revision the label was last applied at is remembered in the cache directory of the root, the versions of that
+ * revision are taken from its structure snapshot. Without the snapshot the label is applied to all elements.
+ * The revisions are forgotten when the label type is created anew or the labeling fails, as the label may be missing on
+ * some elements then.
+ */
+class IncrementalLabeling {
+  private static final Logger LOG = Logger.getLogger(IncrementalLabeling.class);
+
+  private static final String ENABLED_PROPERTY = "clearcase.label.incremental";
+  private static final String BASELINE_FILE_PREFIX = "label-";
+
+  private IncrementalLabeling() {
+  }
+
+  static boolean isEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY);
+  }
+
+  /**
+   * @return the revision the label was last applied at for the include rule, null if it is unknown
+   */
+  @Nullable
+  static Revision getBaseline(@Nullable final File rootCacheDir, @NotNull final String label, @NotNull final IncludeRule includeRule) {
+    if (rootCacheDir == null || !isEnabled()) return null;
+    final File baselineFile = getBaselineFile(rootCacheDir, label, includeRule);
+    if (!baselineFile.isFile()) return null;
+    try {
+      return Revision.fromNotNullString(FileUtil.readText(baselineFile).trim());
+    }
+    catch (IOException e) {
+      LOG.debug("Cannot read label baseline " + baselineFile.getPath() + ": " + e.getLocalizedMessage());
+    }
+    catch (ParseException e) {
+      LOG.debug("Cannot parse label baseline " + baselineFile.getPath() + ": " + e.getLocalizedMessage());
+    }
+    return null;
+  }
+
+  static void setBaseline(@Nullable final File rootCacheDir, @NotNull final String label, @NotNull final IncludeRule includeRule, @NotNull final Revision revision) {
+    if (rootCacheDir == null || !isEnabled()) return;
+    final File baselineFile = getBaselineFile(rootCacheDir, label, includeRule);
+    try {
+      FileUtil.writeFile(baselineFile, revision.asString());
+    }
+    catch (IOException e) {
+      LOG.debug("Cannot write label baseline " + baselineFile.getPath() + ": " + e.getLocalizedMessage());
+    }
+  }
+
+  /**
+   * Forgets the revisions the label was applied at for all include rules, so it is applied to all elements next time.
+   */
+  static void clearBaselines(@Nullable final File rootCacheDir, @NotNull final String label) {
+    if (rootCacheDir == null) return;
+    final String prefix = getBaselineFilePrefix(label);
+    final File[] files = rootCacheDir.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      if (file.getName().startsWith(prefix)) {
+        FileUtil.delete(file);
+      }
+    }
+  }
+
+  /**
+   * @return the processor which passes to the labeler only the versions which differ from the versions of the baseline
+   * revision, null if the snapshot of the baseline revision is not available
+   */
+  @Nullable
+  static VersionProcessor createChangedVersionsLabeler(@NotNull final ClearCaseConnection connection,
+                                                       @NotNull final Revision baseline,
+                                                       @NotNull final VersionProcessor labeler) throws VcsException {
+    final Map<String, String> labeledVersions = new HashMap<String, String>();
+    final boolean snapshotFound = connection.processCachedVersions(baseline, new VersionProcessor() {
+      public void processFile(final String fileFullPath, final String relPath, final String pname, final String version,
+                              final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) {
+        labeledVersions.put(relPath, version);
+      }
+
+      public void processDirectory(final String fileFullPath, final String relPath, final String pname, final String version,
+                                   final ClearCaseConnection clearCaseConnection) {
+        labeledVersions.put(relPath, version);
+      }
+
+      public void finishProcessingDirectory() {
+      }
+    });
+    if (!snapshotFound) return null;
+    LOG.debug("Labeling only the versions changed since " + baseline.asDisplayString());
+
+    return new VersionProcessor() {
+      private final Stack<Boolean> myPassedDirectories = new Stack<Boolean>();
+
+      public void processFile(final String fileFullPath, final String relPath, final String pname, final String version,
+                              final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) throws VcsException {
+        if (!version.equals(labeledVersions.get(relPath))) {
+          labeler.processFile(fileFullPath, relPath, pname, version, clearCaseConnection, text, executable);
+        }
+      }
+
+      public void processDirectory(final String fileFullPath, final String relPath, final String pname, final String version,
+                                   final ClearCaseConnection clearCaseConnection) throws VcsException {
+        final boolean changed = !version.equals(labeledVersions.get(relPath));
+        myPassedDirectories.push(changed);
+        if (changed) {
+          labeler.processDirectory(fileFullPath, relPath, pname, version, clearCaseConnection);
+        }
+      }
+
+      public void finishProcessingDirectory() throws VcsException {
+        // the root of the processed tree may be closed without being opened
+        if (!myPassedDirectories.isEmpty() && myPassedDirectories.pop()) {
+          labeler.finishProcessingDirectory();
+        }
+      }
+    };
+  }
+
+  @NotNull
+  private static File getBaselineFile(@NotNull final File rootCacheDir, @NotNull final String label, @NotNull final IncludeRule includeRule) {
+    return new File(rootCacheDir, getBaselineFilePrefix(label) + Hash.calc(includeRule.getFrom()));
+  }
+
+  @NotNull
+  private static String getBaselineFilePrefix(@NotNull final String label) {
+    return BASELINE_FILE_PREFIX + Hash.calc(label) + "-";
+  }
+}
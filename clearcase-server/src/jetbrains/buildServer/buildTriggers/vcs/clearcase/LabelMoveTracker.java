@@ -0,0 +1,242 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The view selected by a label-based config spec changes when a referenced label is applied, moved or removed,
+ * check-ins do not tell about that. The tracker looks for such label events in the VOB history and gives
+ * the labels a fingerprint which changes every time one of them moves, so the structure snapshots made for
+ * the old label positions are not used any more.
+ * The fingerprint is the time of the latest label event seen, or the time the tracking started.
+ * The history is read at most once a check interval per root. If it cannot be read, the fingerprint is kept
+ * and the same period is looked through again next time.
+ */
+class LabelMoveTracker {
+  private static final Logger LOG = Logger.getLogger(LabelMoveTracker.class);
+
+  private static final String ENABLED_PROPERTY = "clearcase.label.based.specs.cache";
+  private static final String CHECK_INTERVAL_PROPERTY = "clearcase.label.move.check.interval.seconds";
+  private static final String STATE_FILE = "labels";
+  private static final String DELIMITER = ClearCaseConnection.DELIMITER;
+  private static final String FORMAT = "%o" + DELIMITER + "%Nd" + DELIMITER + "%Nc\\n";
+
+  private static final ConcurrentMap<Long, Object> ourLocks = new ConcurrentHashMap<Long, Object>();
+
+  private LabelMoveTracker() {
+  }
+
+  static boolean isEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY);
+  }
+
+  /**
+   * @return the fingerprint of the labels referenced by the config spec of the connection,
+   * null if the config spec does not refer to labels or the tracking is disabled
+   */
+  @Nullable
+  static String getFingerprint(@NotNull final ClearCaseConnection connection, final long rootId, @Nullable final File rootCacheDir) {
+    final SortedSet<String> labels = connection.getConfigSpec().getLabels();
+    if (labels.isEmpty() || rootCacheDir == null || !isEnabled()) return null;
+
+    return getFingerprint(labels, rootId, rootCacheDir, connection.getViewWholePath(), new LabelHistory() {
+      @Nullable
+      public String findLatestLabelEvent(@NotNull final Date since) throws IOException, VcsException {
+        return LabelMoveTracker.findLatestLabelEvent(connection.readMinorHistory(since, FORMAT), labels);
+      }
+    });
+  }
+
+  @NotNull
+  static String getFingerprint(@NotNull final SortedSet<String> labels,
+                               final long rootId,
+                               @NotNull final File rootCacheDir,
+                               @NotNull final String viewPath,
+                               @NotNull final LabelHistory history) {
+    final Object lock = getLock(rootId);
+    synchronized (lock) {
+      final File stateFile = new File(rootCacheDir, STATE_FILE);
+      final String labelsString = StringUtil.join(labels, ",");
+      final State state = loadState(stateFile);
+      final long now = System.currentTimeMillis();
+      if (state == null || !labelsString.equals(state.myLabels)) {
+        final State newState = new State(labelsString, formatDate(new Date(now)), now);
+        saveState(stateFile, newState);
+        return newState.myFingerprint;
+      }
+      if (now - state.myAttemptTime < TeamCityProperties.getInteger(CHECK_INTERVAL_PROPERTY, 60) * 1000L) {
+        return state.myFingerprint;
+      }
+
+      // label events may be recorded with a delay like check-ins
+      final Date since = new Date(state.myCheckTime - CCParseUtil.getLookForTheChangesInThePastMinutes() * 60 * 1000L);
+      String fingerprint = state.myFingerprint;
+      try {
+        final String latestEvent = history.findLatestLabelEvent(since);
+        if (latestEvent != null && latestEvent.compareTo(fingerprint) > 0) {
+          LOG.debug("Label of the config spec was moved at " + latestEvent + ", structure snapshots of " + viewPath + " are rebuilt");
+          fingerprint = latestEvent;
+        }
+      }
+      catch (Exception e) {
+        // the check time is kept, so the missed events are looked for again after the check interval
+        // the fingerprint is kept too: a new one would make every failed check rebuild the snapshots
+        LOG.debug("Cannot read label history of " + viewPath + ": " + e.getLocalizedMessage());
+        saveState(stateFile, new State(labelsString, fingerprint, state.myCheckTime, now));
+        return fingerprint;
+      }
+      saveState(stateFile, new State(labelsString, fingerprint, now));
+      return fingerprint;
+    }
+  }
+
+  interface LabelHistory {
+    /**
+     * @return the time of the latest mklabel or rmlabel event of the tracked labels since the date, null if there were no such events
+     */
+    @Nullable
+    String findLatestLabelEvent(@NotNull Date since) throws IOException, VcsException;
+  }
+
+  /**
+   * @param input lshistory output in the {@link #FORMAT} format
+   * @return the time of the latest mklabel or rmlabel event of the labels, null if there were no such events
+   */
+  @Nullable
+  static String findLatestLabelEvent(@NotNull final InputStream input, @NotNull final SortedSet<String> labels) throws IOException {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+    String latest = null;
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String[] parts = line.split(DELIMITER, 3);
+        if (parts.length < 3 || !isLabelOperation(parts[0].trim())) continue;
+        if (!refersToLabel(parts[2], labels)) continue;
+        final String date = parts[1].trim();
+        if (latest == null || date.compareTo(latest) > 0) {
+          latest = date;
+        }
+      }
+    }
+    finally {
+      FileUtil.close(reader);
+    }
+    return latest;
+  }
+
+  private static boolean isLabelOperation(@NotNull final String operation) {
+    return "mklabel".equals(operation) || "rmlabel".equals(operation);
+  }
+
+  private static boolean refersToLabel(@NotNull final String comment, @NotNull final SortedSet<String> labels) {
+    for (String label : labels) {
+      if (comment.contains("\"" + label + "\"")) return true;
+    }
+    return false;
+  }
+
+  @NotNull
+  private static Object getLock(final long rootId) {
+    final Object lock = new Object();
+    final Object existing = ourLocks.putIfAbsent(rootId, lock);
+    return existing == null ? lock : existing;
+  }
+
+  @NotNull
+  private static String formatDate(@NotNull final Date date) {
+    return new SimpleDateFormat(CCCommonParseUtil.OUTPUT_DATE_FORMAT).format(date);
+  }
+
+  @Nullable
+  private static State loadState(@NotNull final File stateFile) {
+    if (!stateFile.isFile()) return null;
+    final Properties properties = new Properties();
+    InputStream input = null;
+    try {
+      input = new FileInputStream(stateFile);
+      properties.load(input);
+      final String labels = properties.getProperty("labels");
+      final String fingerprint = properties.getProperty("fingerprint");
+      final String checkTime = properties.getProperty("checkTime");
+      if (labels == null || fingerprint == null || checkTime == null) return null;
+      final String attemptTime = properties.getProperty("attemptTime", checkTime);
+      return new State(labels, fingerprint, Long.parseLong(checkTime), Long.parseLong(attemptTime));
+    }
+    catch (Exception e) {
+      LOG.debug("Cannot load label tracking state " + stateFile.getPath() + ": " + e.getLocalizedMessage());
+      return null;
+    }
+    finally {
+      FileUtil.close(input);
+    }
+  }
+
+  private static void saveState(@NotNull final File stateFile, @NotNull final State state) {
+    final Properties properties = new Properties();
+    properties.setProperty("labels", state.myLabels);
+    properties.setProperty("fingerprint", state.myFingerprint);
+    properties.setProperty("checkTime", String.valueOf(state.myCheckTime));
+    properties.setProperty("attemptTime", String.valueOf(state.myAttemptTime));
+    OutputStream output = null;
+    try {
+      output = new FileOutputStream(stateFile);
+      properties.store(output, null);
+    }
+    catch (IOException e) {
+      LOG.debug("Cannot save label tracking state " + stateFile.getPath() + ": " + e.getLocalizedMessage());
+    }
+    finally {
+      FileUtil.close(output);
+    }
+  }
+
+  private static class State {
+    private final @NotNull String myLabels;
+    private final @NotNull String myFingerprint;
+    private final long myCheckTime;
+    private final long myAttemptTime;
+
+    private State(@NotNull final String labels, @NotNull final String fingerprint, final long checkTime) {
+      this(labels, fingerprint, checkTime, checkTime);
+    }
+
+    /**
+     * @param checkTime the time the history was read successfully last time
+     * @param attemptTime the time the history was tried to read last time
+     */
+    private State(@NotNull final String labels, @NotNull final String fingerprint, final long checkTime, final long attemptTime) {
+      myLabels = labels;
+      myFingerprint = fingerprint;
+      myCheckTime = checkTime;
+      myAttemptTime = attemptTime;
+    }
+  }
+}
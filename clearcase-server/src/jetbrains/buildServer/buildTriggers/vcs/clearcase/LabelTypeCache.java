@@ -0,0 +1,90 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Label types known to exist, per VOB tag. Only existence is cached: a label type which is not in the cache is looked up
+ * in the VOB. A label type removed from the VOB is noticed when using it fails. The VOB tags of the view paths are
+ * remembered too, so a cached label type is used without running cleartool at all.
+ */
+class LabelTypeCache {
+  private static final int MAX_LABELS_PER_VOB = 10000;
+  private static final int MAX_VOB_TAGS = 1000;
+
+  private final Map<String, LinkedHashMap<String, Boolean>> myVob2Labels = new HashMap<String, LinkedHashMap<String, Boolean>>();
+  private final LinkedHashMap<String, String> myPath2VobTag = new LinkedHashMap<String, String>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+      return size() > MAX_VOB_TAGS;
+    }
+  };
+
+  @Nullable
+  synchronized String getVobTag(@NotNull final String path) {
+    return myPath2VobTag.get(path);
+  }
+
+  synchronized void putVobTag(@NotNull final String path, @NotNull final String vobTag) {
+    myPath2VobTag.put(path, vobTag);
+  }
+
+  synchronized boolean contains(@NotNull final String vob, @NotNull final String label) {
+    final LinkedHashMap<String, Boolean> labels = myVob2Labels.get(vob);
+    return labels != null && labels.get(label) != null;
+  }
+
+  synchronized void add(@NotNull final String vob, @NotNull final String label) {
+    LinkedHashMap<String, Boolean> labels = myVob2Labels.get(vob);
+    if (labels == null) {
+      labels = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+          return size() > MAX_LABELS_PER_VOB;
+        }
+      };
+      myVob2Labels.put(vob, labels);
+    }
+    labels.put(label, Boolean.TRUE);
+  }
+
+  synchronized void remove(@NotNull final String vob, @NotNull final String label) {
+    final LinkedHashMap<String, Boolean> labels = myVob2Labels.get(vob);
+    if (labels != null) {
+      labels.remove(label);
+    }
+  }
+
+  /**
+   * Forgets the label type in all VOBs, e.g. when labeling with it failed.
+   */
+  synchronized void removeEverywhere(@NotNull final String label) {
+    for (Iterator<LinkedHashMap<String, Boolean>> it = myVob2Labels.values().iterator(); it.hasNext();) {
+      final LinkedHashMap<String, Boolean> labels = it.next();
+      labels.remove(label);
+      if (labels.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+}
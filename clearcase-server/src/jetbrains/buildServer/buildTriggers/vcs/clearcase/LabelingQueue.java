@@ -0,0 +1,277 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.Hash;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.impl.VcsRootImpl;
+import jetbrains.buildServer.vcs.clearcase.Constants;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Applies labels in the background, so that labeling does not delay the build finish and does not hold the view
+ * for a long time. Jobs are stored on disk and survive the server restart. A pending job is replaced by a newer job
+ * applying the same label to the same root. Only a limited number of jobs runs in every VOB at once, failed jobs are retried.
+ * The build finishes before its label is applied, so the queue is used only when enabled explicitly, labeling is synchronous by default.
+ */
+class LabelingQueue {
+  private static final Logger LOG = Logger.getLogger(LabelingQueue.class);
+
+  static final String ENABLED_PROPERTY = "clearcase.label.async";
+  private static final String THREADS_PROPERTY = "clearcase.label.async.threads";
+  private static final String JOBS_PER_VOB_PROPERTY = "clearcase.label.async.jobs.per.vob";
+  private static final String RETRIES_PROPERTY = "clearcase.label.async.retries";
+  private static final String RETRY_DELAY_PROPERTY = "clearcase.label.async.retry.delay.seconds";
+  private static final String JOB_FILE_SUFFIX = ".job";
+  private static final String ROOT_PROPERTY_PREFIX = "root.property.";
+
+  private final @NotNull Labeler myLabeler;
+  private final @NotNull File myJobsDir;
+  private final @NotNull LinkedHashMap<String, Job> myPendingJobs = new LinkedHashMap<String, Job>();
+  private final @NotNull Set<String> myRunningJobs = new HashSet<String>();
+  private final @NotNull Map<String, Integer> myRunningJobsPerVob = new HashMap<String, Integer>();
+  private final @NotNull ExecutorService myExecutor;
+  private final @NotNull ScheduledExecutorService myRetryExecutor = ExecutorsFactory.newFixedScheduledDaemonExecutor("ClearCase labeling retry", 1);
+
+  LabelingQueue(@NotNull final Labeler labeler, @NotNull final File jobsDir) {
+    myLabeler = labeler;
+    myJobsDir = jobsDir;
+    myExecutor = ExecutorsFactory.newFixedDaemonExecutor("ClearCase labeling", Math.max(1, TeamCityProperties.getInteger(THREADS_PROPERTY, 4)));
+    loadJobs();
+  }
+
+  static boolean isEnabled() {
+    return TeamCityProperties.getBoolean(ENABLED_PROPERTY);
+  }
+
+  /**
+   * Applies the label synchronously, see {@link ClearCaseSupport#label}.
+   */
+  interface Labeler {
+    void doLabel(@NotNull String label, @NotNull String version, @NotNull VcsRoot root, @NotNull CheckoutRules checkoutRules) throws VcsException;
+  }
+
+  void enqueue(@NotNull final String label, @NotNull final String version, @NotNull final VcsRoot root, @NotNull final CheckoutRules checkoutRules) {
+    final Job job = new Job(root, label, version, checkoutRules.getAsString(), 0);
+    synchronized (this) {
+      if (myPendingJobs.remove(job.myKey) != null) {
+        LOG.info("Labeling " + root.getName() + " with " + label + " at " + version + " supersedes the pending job");
+      }
+      myPendingJobs.put(job.myKey, job);
+      save(job);
+    }
+    LOG.info("Labeling " + root.getName() + " with " + label + " at " + version + " is queued");
+    dispatch();
+  }
+
+  private synchronized void dispatch() {
+    final int perVob = Math.max(1, TeamCityProperties.getInteger(JOBS_PER_VOB_PROPERTY, 1));
+    for (Iterator<Job> it = myPendingJobs.values().iterator(); it.hasNext();) {
+      final Job job = it.next();
+      final Integer running = myRunningJobsPerVob.get(job.myVob);
+      if (myRunningJobs.contains(job.myKey) || running != null && running >= perVob) continue;
+      it.remove();
+      myRunningJobs.add(job.myKey);
+      myRunningJobsPerVob.put(job.myVob, running == null ? 1 : running + 1);
+      myExecutor.execute(new Runnable() {
+        public void run() {
+          try {
+            runJob(job);
+          }
+          finally {
+            jobFinished(job);
+          }
+        }
+      });
+    }
+  }
+
+  private synchronized void jobFinished(@NotNull final Job job) {
+    myRunningJobs.remove(job.myKey);
+    final Integer running = myRunningJobsPerVob.get(job.myVob);
+    if (running == null || running <= 1) {
+      myRunningJobsPerVob.remove(job.myVob);
+    }
+    else {
+      myRunningJobsPerVob.put(job.myVob, running - 1);
+    }
+    dispatch();
+  }
+
+  private void runJob(@NotNull final Job job) {
+    final long start = System.currentTimeMillis();
+    LOG.info("Labeling " + job.myRoot.getName() + " with " + job.myLabel + " at " + job.myVersion + " is started" +
+             (job.myAttempt > 0 ? ", attempt " + (job.myAttempt + 1) : ""));
+    try {
+      myLabeler.doLabel(job.myLabel, job.myVersion, job.myRoot, new CheckoutRules(job.myCheckoutRules));
+      LOG.info("Labeling " + job.myRoot.getName() + " with " + job.myLabel + " at " + job.myVersion + " is finished in " +
+               (System.currentTimeMillis() - start) / 1000 + " s");
+      deleteIfNotSuperseded(job);
+    }
+    catch (Throwable e) {
+      final int retries = TeamCityProperties.getInteger(RETRIES_PROPERTY, 2);
+      if (job.myAttempt >= retries) {
+        LOG.warn("Labeling " + job.myRoot.getName() + " with " + job.myLabel + " at " + job.myVersion + " failed: " + e.getLocalizedMessage(), e);
+        deleteIfNotSuperseded(job);
+        return;
+      }
+      LOG.info("Labeling " + job.myRoot.getName() + " with " + job.myLabel + " at " + job.myVersion + " failed, it will be retried: " + e.getLocalizedMessage());
+      final Job retry = new Job(job.myRoot, job.myLabel, job.myVersion, job.myCheckoutRules, job.myAttempt + 1);
+      myRetryExecutor.schedule(new Runnable() {
+        public void run() {
+          synchronized (LabelingQueue.this) {
+            if (myPendingJobs.containsKey(retry.myKey)) return; // superseded
+            myPendingJobs.put(retry.myKey, retry);
+            save(retry);
+          }
+          dispatch();
+        }
+      }, TeamCityProperties.getInteger(RETRY_DELAY_PROPERTY, 60), TimeUnit.SECONDS);
+    }
+  }
+
+  private synchronized void deleteIfNotSuperseded(@NotNull final Job job) {
+    if (!myPendingJobs.containsKey(job.myKey)) {
+      FileUtil.delete(getJobFile(job.myKey));
+    }
+  }
+
+  private void save(@NotNull final Job job) {
+    final Properties properties = new Properties();
+    properties.setProperty("root.id", String.valueOf(job.myRoot.getId()));
+    properties.setProperty("root.vcsName", job.myRoot.getVcsName());
+    for (Map.Entry<String, String> entry : job.myRoot.getProperties().entrySet()) {
+      properties.setProperty(ROOT_PROPERTY_PREFIX + entry.getKey(), entry.getValue());
+    }
+    properties.setProperty("label", job.myLabel);
+    properties.setProperty("version", job.myVersion);
+    properties.setProperty("checkoutRules", job.myCheckoutRules);
+    properties.setProperty("attempt", String.valueOf(job.myAttempt));
+    final File jobFile = getJobFile(job.myKey);
+    OutputStream output = null;
+    try {
+      FileUtil.createParentDirs(jobFile);
+      output = new FileOutputStream(jobFile);
+      properties.store(output, null);
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot save labeling job " + jobFile.getPath() + ", it will be lost on the server restart: " + e.getLocalizedMessage());
+    }
+    finally {
+      FileUtil.close(output);
+    }
+  }
+
+  private synchronized void loadJobs() {
+    final File[] jobFiles = myJobsDir.listFiles();
+    if (jobFiles == null) return;
+    for (File jobFile : jobFiles) {
+      if (!jobFile.getName().endsWith(JOB_FILE_SUFFIX)) continue;
+      final Job job = load(jobFile);
+      if (job == null) {
+        FileUtil.delete(jobFile);
+        continue;
+      }
+      myPendingJobs.put(job.myKey, job);
+    }
+    if (!myPendingJobs.isEmpty()) {
+      LOG.info(myPendingJobs.size() + " labeling jobs left from the previous server run are queued");
+      dispatch();
+    }
+  }
+
+  @Nullable
+  private static Job load(@NotNull final File jobFile) {
+    final Properties properties = new Properties();
+    InputStream input = null;
+    try {
+      input = new FileInputStream(jobFile);
+      properties.load(input);
+      final VcsRootImpl root = new VcsRootImpl(Long.parseLong(properties.getProperty("root.id")), properties.getProperty("root.vcsName"));
+      final Map<String, String> rootProperties = new HashMap<String, String>();
+      for (String name : properties.stringPropertyNames()) {
+        if (name.startsWith(ROOT_PROPERTY_PREFIX)) {
+          rootProperties.put(name.substring(ROOT_PROPERTY_PREFIX.length()), properties.getProperty(name));
+        }
+      }
+      root.addAllProperties(rootProperties);
+      return new Job(root, properties.getProperty("label"), properties.getProperty("version"), properties.getProperty("checkoutRules"),
+                     Integer.parseInt(properties.getProperty("attempt")));
+    }
+    catch (Exception e) {
+      LOG.warn("Cannot load labeling job " + jobFile.getPath() + ": " + e.getLocalizedMessage());
+      return null;
+    }
+    finally {
+      FileUtil.close(input);
+    }
+  }
+
+  @NotNull
+  private File getJobFile(@NotNull final String key) {
+    return new File(myJobsDir, Hash.calc(key) + JOB_FILE_SUFFIX);
+  }
+
+  /**
+   * @return the VOB tag the root is in, labels of the roots in one VOB are applied with limited concurrency.
+   * If the root is configured with the whole view path, the VOB is not known without cleartool, so the path is used instead.
+   */
+  @NotNull
+  private static String getVob(@NotNull final VcsRoot root) {
+    final String viewPath = root.getProperty(Constants.VIEW_PATH);
+    if (viewPath != null && viewPath.trim().length() != 0) return viewPath.trim();
+    final String relativePath = root.getProperty(Constants.RELATIVE_PATH);
+    if (relativePath == null) return "";
+    final String[] names = relativePath.replace('\\', '/').replaceFirst("^/+", "").split("/");
+    if (names.length > 1 && Constants.VOBS_NAME_ONLY.equals(names[0])) {
+      return names[0] + "/" + names[1];
+    }
+    return names[0];
+  }
+
+  private static class Job {
+    private final @NotNull VcsRoot myRoot;
+    private final @NotNull String myLabel;
+    private final @NotNull String myVersion;
+    private final @NotNull String myCheckoutRules;
+    private final int myAttempt;
+    private final @NotNull String myKey;
+    private final @NotNull String myVob;
+
+    private Job(@NotNull final VcsRoot root, @NotNull final String label, @NotNull final String version, @NotNull final String checkoutRules, final int attempt) {
+      myRoot = root;
+      myLabel = label;
+      myVersion = version;
+      myCheckoutRules = checkoutRules;
+      myAttempt = attempt;
+      myKey = root.getId() + "\n" + label + "\n" + checkoutRules;
+      myVob = getVob(root);
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.IOException;
+import java.util.*;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.vcs.IncludeRule;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Prepares everything a patch to a just detected revision needs before the builds at this revision start:
+ * the structure snapshot of the revision, the version trees of the changed elements and the contents of the changed files.
+ * Requests are processed one by one in a low priority thread, a newer request for the same root replaces the pending one.
+ */
+class PatchWarmer {
+  private static final Logger LOG = Logger.getLogger(PatchWarmer.class);
+
+  private static final String ENABLED_PROPERTY = "clearcase.patch.warmup.enabled";
+  private static final String MAX_ELEMENTS_PROPERTY = "clearcase.patch.warmup.max.elements";
+  private static final String TIMEOUT_PROPERTY = "clearcase.patch.warmup.timeout.seconds";
+
+  private final @NotNull ClearCaseSupport mySupport;
+  private final @NotNull LinkedHashMap<String, Request> myPendingRequests = new LinkedHashMap<String, Request>();
+  private @Nullable Thread myThread;
+
+  PatchWarmer(final @NotNull ClearCaseSupport support) {
+    mySupport = support;
+  }
+
+  /**
+   * @return an object to collect the changed elements into or null if the warm-up is disabled
+   */
+  @Nullable
+  static Changes createChanges() {
+    return TeamCityProperties.getBoolean(ENABLED_PROPERTY) ? new Changes(TeamCityProperties.getInteger(MAX_ELEMENTS_PROPERTY, 500)) : null;
+  }
+
+  void schedule(final @NotNull VcsRoot root, final @NotNull IncludeRule includeRule, final @NotNull Revision version, final @NotNull Changes changes) {
+    final String key = root.getId() + "\n" + includeRule.getFrom();
+    synchronized (myPendingRequests) {
+      myPendingRequests.remove(key);
+      myPendingRequests.put(key, new Request(root, includeRule, version, changes));
+      if (myThread == null) {
+        myThread = new Thread(new Runnable() {
+          public void run() {
+            processRequests();
+          }
+        }, "ClearCase patch warm-up");
+        myThread.setDaemon(true);
+        myThread.setPriority(Thread.MIN_PRIORITY);
+        myThread.start();
+      }
+    }
+  }
+
+  private void processRequests() {
+    while (true) {
+      final Request request;
+      synchronized (myPendingRequests) {
+        final Iterator<Request> it = myPendingRequests.values().iterator();
+        if (!it.hasNext()) {
+          myThread = null;
+          return;
+        }
+        request = it.next();
+        it.remove();
+      }
+      try {
+        warmUp(request);
+      }
+      catch (Throwable e) {
+        LOG.debug("Failed to prepare patch to " + request.myVersion + " for " + request.myRoot.getName() + ": " + e.getLocalizedMessage(), e);
+      }
+    }
+  }
+
+  private void warmUp(final @NotNull Request request) throws IOException, VcsException {
+    final long deadline = System.currentTimeMillis() + TeamCityProperties.getInteger(TIMEOUT_PROPERTY, 600) * 1000L;
+    LOG.debug("Preparing patch to " + request.myVersion + " for " + request.myRoot.getName());
+    mySupport.withConnection(request.myRoot, request.myIncludeRule, null, new ClearCaseSupport.ConnectionProcessor() {
+      public void process(@NotNull final ClearCaseConnection connection) throws VcsException, IOException {
+        if (mySupport.isStructureCacheUsed(connection)) {
+          connection.processAllVersions(request.myVersion, NO_OP_PROCESSOR, false, true);
+        }
+        for (String directory : request.myChanges.myDirectories) {
+          if (System.currentTimeMillis() > deadline) return;
+          connection.warmUpVersionTree(directory, true);
+        }
+        for (Map.Entry<String, String> file : request.myChanges.myFiles.entrySet()) {
+          if (System.currentTimeMillis() > deadline) return;
+          connection.warmUpVersionTree(file.getKey(), false);
+          mySupport.warmUpContent(connection, file.getValue());
+        }
+      }
+    });
+  }
+
+  private static final VersionProcessor NO_OP_PROCESSOR = new VersionProcessor() {
+    public void processFile(final String fileFullPath, final String relPath, final String pname, final String version,
+                            final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) {
+    }
+
+    public void processDirectory(final String fileFullPath, final String relPath, final String pname, final String version,
+                                 final ClearCaseConnection clearCaseConnection) {
+    }
+
+    public void finishProcessingDirectory() {
+    }
+  };
+
+  /**
+   * Elements changed up to the detected revision, at most the configured number of them is kept.
+   */
+  static class Changes {
+    private final int myMaxElements;
+    private final @NotNull Set<String> myDirectories = new LinkedHashSet<String>();
+    private final @NotNull Map<String, String> myFiles = new LinkedHashMap<String, String>();
+
+    private Changes(final int maxElements) {
+      myMaxElements = maxElements;
+    }
+
+    void addFile(final @NotNull String elementPath, final @NotNull String versionPath) {
+      if (myFiles.containsKey(elementPath) || !isFull()) {
+        myFiles.put(elementPath, versionPath);
+      }
+    }
+
+    void addDirectory(final @NotNull String elementPath) {
+      if (!isFull()) {
+        myDirectories.add(elementPath);
+      }
+    }
+
+    boolean isEmpty() {
+      return myDirectories.isEmpty() && myFiles.isEmpty();
+    }
+
+    private boolean isFull() {
+      return myDirectories.size() + myFiles.size() >= myMaxElements;
+    }
+  }
+
+  private static class Request {
+    private final @NotNull VcsRoot myRoot;
+    private final @NotNull IncludeRule myIncludeRule;
+    private final @NotNull Revision myVersion;
+    private final @NotNull Changes myChanges;
+
+    private Request(final @NotNull VcsRoot root, final @NotNull IncludeRule includeRule, final @NotNull Revision version, final @NotNull Changes changes) {
+      myRoot = root;
+      myIncludeRule = includeRule;
+      myVersion = version;
+      myChanges = changes;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.IOException;
+import java.util.*;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.Dates;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.clearcase.Constants;
+import jetbrains.buildServer.vcs.clearcase.Util;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * History of a UCM stream is incomplete while a delivery or a rebase is being completed: its versions are checked in one by one.
+ * Instead of reading the history until the event count settles, the history is read once and the change sets of the
+ * integration activities met in it are checked for versions still checked out. The history is read again only if
+ * such an activity is found.
+ */
+class UcmDeliveries {
+  private static final Logger LOG = Logger.getLogger(UcmDeliveries.class);
+
+  private static final String ENABLED_PROPERTY = "clearcase.ucm.activity.check";
+  private static final String ATTEMPTS_PROPERTY = "clearcase.ucm.activity.check.attempts";
+  private static final String[] INTEGRATION_ACTIVITY_PREFIXES = { "deliver.", "rebase." };
+
+  private UcmDeliveries() {
+  }
+
+  static boolean isEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY);
+  }
+
+  /**
+   * @param iterator the history read since the revision, it is consumed
+   * @return the history since the revision containing no unfinished deliveries and rebases
+   * @throws IOException if the change set of an activity cannot be read
+   */
+  @NotNull
+  static HistoryElementIterator readSettledHistory(@NotNull final ClearCaseConnection connection,
+                                                   @NotNull final Revision fromVersion,
+                                                   @NotNull final HistoryElementIterator iterator) throws IOException, VcsException {
+    final long delay = TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_LSHISTORY_UCM_DELAY, 5) * Dates.ONE_SECOND;
+    final int attempts = Math.max(1, TeamCityProperties.getInteger(ATTEMPTS_PROPERTY, 10));
+    final Set<String> finishedActivities = new HashSet<String>();
+    List<HistoryElement> elements = readAll(iterator);
+    for (int attempt = 1; ; attempt++) {
+      final String activity = findActivityInProgress(connection, elements, finishedActivities);
+      if (activity == null) break;
+      if (attempt >= attempts) {
+        LOG.warn("Activity " + activity + " is still in progress after " + attempts + " attempts, its changes may be collected partially");
+        break;
+      }
+      LOG.debug("Activity " + activity + " is in progress, the history will be read again");
+      try {
+        Util.sleep("UcmDeliveries: waiting for " + activity, delay);
+      } catch (final InterruptedException ignore) {}
+      elements = readAll(connection.getChangesIterator(fromVersion));
+    }
+    return new ListIterator(elements);
+  }
+
+  @Nullable
+  private static String findActivityInProgress(@NotNull final ClearCaseConnection connection,
+                                               @NotNull final List<HistoryElement> elements,
+                                               @NotNull final Set<String> finishedActivities) throws IOException {
+    for (HistoryElement element : elements) {
+      final String activity = element.getActivity() == null ? "" : element.getActivity().trim();
+      if (!isIntegrationActivity(activity) || finishedActivities.contains(activity)) continue;
+      if (connection.hasCheckedOutVersions(activity)) return activity;
+      finishedActivities.add(activity);
+    }
+    return null;
+  }
+
+  private static boolean isIntegrationActivity(@NotNull final String activity) {
+    for (String prefix : INTEGRATION_ACTIVITY_PREFIXES) {
+      if (activity.startsWith(prefix)) return true;
+    }
+    return false;
+  }
+
+  @NotNull
+  private static List<HistoryElement> readAll(@NotNull final HistoryElementIterator iterator) throws IOException {
+    final List<HistoryElement> elements = new ArrayList<HistoryElement>();
+    try {
+      while (iterator.hasNext()) {
+        elements.add(iterator.next());
+      }
+    }
+    finally {
+      iterator.close();
+    }
+    return elements;
+  }
+
+  private static class ListIterator implements HistoryElementIterator {
+    private final @NotNull Iterator<HistoryElement> myIterator;
+
+    private ListIterator(@NotNull final List<HistoryElement> elements) {
+      myIterator = elements.iterator();
+    }
+
+    @NotNull
+    public HistoryElement next() {
+      return myIterator.next();
+    }
+
+    public boolean hasNext() {
+      return myIterator.hasNext();
+    }
+
+    public void close() {}
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpec;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecParseUtil;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Facts about the views every connection starts with: whether the path is a view root, the view tag, whether the view
+ * is dynamic and its config spec. The view facts rarely change, so they are read once in a short period for all connections
+ * to a view and for the build start. The config spec text is read by every connection, a change of it invalidates
+ * the cached facts at once. The parsed config spec is shared until the config spec text changes.
+ * Also remembers when snapshot views were updated, so a view is not updated again by every connection opened right after.
+ */
+class ViewMetadataCache {
+  private static final String TTL_PROPERTY = "clearcase.view.metadata.ttl.seconds";
+  private static final String UPDATE_DEBOUNCE_PROPERTY = "clearcase.view.update.debounce.seconds";
+
+  private final @NotNull Map<String, ViewMetadata> myViews = new HashMap<String, ViewMetadata>();
+  private final @NotNull Map<String, Long> myUpdateTimes = new HashMap<String, Long>();
+
+  /**
+   * @return metadata of the view or null if the path is not a view root
+   */
+  @Nullable
+  ViewMetadata getMetadata(@NotNull final String ccViewPath, @NotNull final ClearCaseInteractiveProcess process) throws IOException {
+    final ViewMetadata previous;
+    synchronized (myViews) {
+      previous = myViews.get(ccViewPath);
+    }
+    final long readTime = System.currentTimeMillis();
+    if (previous != null && readTime - previous.myReadTime <= TeamCityProperties.getInteger(TTL_PROPERTY, 30) * 1000L &&
+        previous.myConfigSpecText.equals(readText(ClearCaseConnection.getConfigSpecInputStream(process)))) {
+      return previous;
+    }
+
+    if (!ClearCaseConnection.isClearCaseView(ccViewPath, process)) return null;
+    final ViewMetadata metadata = new ViewMetadata(readTime);
+    readViewInfo(process, metadata);
+    metadata.myConfigSpecText = readText(ClearCaseConnection.getConfigSpecInputStream(process));
+    if (previous != null && previous.myConfigSpecText.equals(metadata.myConfigSpecText) && previous.myDynamic == metadata.myDynamic) {
+      metadata.myConfigSpec = previous.myConfigSpec;
+    }
+    synchronized (myViews) {
+      myViews.put(ccViewPath, metadata);
+    }
+    return metadata;
+  }
+
+  private static void readViewInfo(@NotNull final ClearCaseInteractiveProcess process, @NotNull final ViewMetadata metadata) throws IOException {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(process.executeAndReturnProcessInput(new String[] { "lsview", "-cview", "-long" })));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String trimmed = line.trim();
+        if (trimmed.startsWith("Tag:")) {
+          // the view comment may follow the tag
+          final String[] words = trimmed.substring("Tag:".length()).trim().split(" +");
+          metadata.myTag = words[0].length() == 0 ? null : words[0];
+        }
+        else if (trimmed.startsWith("View attributes:")) {
+          metadata.myDynamic = !trimmed.contains("snapshot");
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * @param requestTime the moment the update was requested at
+   * @return true if an update of the view started recently enough to serve the request
+   */
+  boolean isUpdatedSince(@NotNull final String ccViewPath, final long requestTime) {
+    final long debounce = TeamCityProperties.getInteger(UPDATE_DEBOUNCE_PROPERTY, 5) * 1000L;
+    synchronized (myUpdateTimes) {
+      final Long updateTime = myUpdateTimes.get(ccViewPath);
+      return updateTime != null && updateTime >= requestTime - debounce;
+    }
+  }
+
+  /**
+   * @return the moment the last update of the view started at, 0 if the view was not updated
+   */
+  long getUpdateTime(@NotNull final String ccViewPath) {
+    synchronized (myUpdateTimes) {
+      final Long updateTime = myUpdateTimes.get(ccViewPath);
+      return updateTime == null ? 0 : updateTime;
+    }
+  }
+
+  void viewUpdated(@NotNull final String ccViewPath, final long updateStartTime) {
+    synchronized (myUpdateTimes) {
+      myUpdateTimes.put(ccViewPath, updateStartTime);
+    }
+  }
+
+  @NotNull
+  private static String readText(@NotNull final InputStream input) throws IOException {
+    final StringBuilder text = new StringBuilder();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        text.append(line).append('\n');
+      }
+    }
+    finally {
+      reader.close();
+    }
+    return text.toString();
+  }
+
+  static class ViewMetadata {
+    private final long myReadTime;
+    private @Nullable String myTag;
+    private boolean myDynamic = true;
+    private @NotNull String myConfigSpecText = "";
+    private volatile @Nullable ConfigSpec myConfigSpec;
+
+    private ViewMetadata(final long readTime) {
+      myReadTime = readTime;
+    }
+
+    @Nullable
+    String getTag() {
+      return myTag;
+    }
+
+    boolean isDynamic() {
+      return myDynamic;
+    }
+
+    /**
+     * @return the config spec as "catcs" prints it
+     */
+    @NotNull
+    String getConfigSpecText() {
+      return myConfigSpecText;
+    }
+
+    @NotNull
+    InputStream getConfigSpecInputStream() {
+      return new ByteArrayInputStream(myConfigSpecText.getBytes());
+    }
+
+    /**
+     * @return the parsed config spec, it is shared by all users of the view and must not be changed
+     */
+    @NotNull
+    synchronized ConfigSpec getConfigSpec(@NotNull final ViewPath viewPath) throws VcsException {
+      if (myConfigSpec == null) {
+        myConfigSpec = ConfigSpecParseUtil.getConfigSpecFromStream(viewPath.getClearCaseViewPathFile(), getConfigSpecInputStream(), null);
+        myConfigSpec.setViewIsDynamic(myDynamic);
+      }
+      return myConfigSpec;
+    }
+  }
+}
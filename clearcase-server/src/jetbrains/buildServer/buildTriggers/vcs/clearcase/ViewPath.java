@@ -31,6 +31,7 @@ public class ViewPath {
 
   private String myIncludeRuleFrom;
   private String myWholePath;
+  private String myWholePathWithoutIncludeRule;
 
   public ViewPath(@NotNull final String ccViewPath, @Nullable final String relativePath) throws VcsException {
     myCCViewPath = CCPathElement.normalizePath(ccViewPath.trim());
@@ -59,6 +60,22 @@ public class ViewPath {
     return myWholePath;
   }
 
+  /**
+   * @return the path of the root within the view, i.e. the whole path without the include rule part
+   */
+  @NotNull
+  public String getWholePathWithoutIncludeRule() {
+    return myWholePathWithoutIncludeRule;
+  }
+
+  /**
+   * @return the include rule path relative to the root path or an empty string if there is no include rule
+   */
+  @NotNull
+  public String getIncludeRuleFrom() {
+    return myIncludeRuleFrom == null ? "" : myIncludeRuleFrom;
+  }
+
   @NotNull
   public File getClearCaseViewPathFile() {
     return new File(myCCViewPath);
@@ -83,6 +100,7 @@ public class ViewPath {
     final StringBuilder sb = new StringBuilder(myCCViewPath);
 
     appendPath(sb, myRelativePath);
+    myWholePathWithoutIncludeRule = CCPathElement.normalizePath(sb.toString());
     appendPath(sb, myIncludeRuleFrom);
 
     myWholePath = CCPathElement.normalizePath(sb.toString());
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * View roots of the view paths configured in the roots, so "pwv -root" is not run every time a root is resolved.
+ * A view root may only change when the view is recreated, so entries live for a short time.
+ */
+class ViewRootCache {
+  private static final String TTL_PROPERTY = "clearcase.view.root.cache.ttl.seconds";
+  private static final int MAX_ENTRIES = 1000;
+
+  private final LinkedHashMap<String, Entry> myEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  @Nullable
+  synchronized String get(@NotNull final String viewPath) {
+    final Entry entry = myEntries.get(viewPath);
+    if (entry == null) return null;
+    if (System.currentTimeMillis() - entry.myResolveTime > TeamCityProperties.getInteger(TTL_PROPERTY, 60) * 1000L) {
+      myEntries.remove(viewPath);
+      return null;
+    }
+    return entry.myViewRoot;
+  }
+
+  synchronized void put(@NotNull final String viewPath, @NotNull final String viewRoot) {
+    myEntries.put(viewPath, new Entry(viewRoot, System.currentTimeMillis()));
+  }
+
+  private static class Entry {
+    private final @NotNull String myViewRoot;
+    private final long myResolveTime;
+
+    private Entry(@NotNull final String viewRoot, final long resolveTime) {
+      myViewRoot = viewRoot;
+      myResolveTime = resolveTime;
+    }
+  }
+}
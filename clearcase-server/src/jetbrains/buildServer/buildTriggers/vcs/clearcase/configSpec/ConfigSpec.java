@@ -36,6 +36,9 @@ public interface ConfigSpec {
   @NotNull
   List<ConfigSpecLoadRule> getLoadRules();
 
+  @NotNull
+  List<ConfigSpecStandardRule> getStandardRules();
+
   boolean isUnderLoadRules(String ccViewRoot, String fullFileName) throws IOException, VcsException;
 
   void setViewIsDynamic(boolean viewIsDynamic);
@@ -45,6 +48,19 @@ public interface ConfigSpec {
    */
   boolean hasLabelBasedVersionSelector();
 
+  /**
+   * @return names of the labels the Version Selectors of the Rules refer to
+   */
+  @NotNull
+  SortedSet<String> getLabels();
+
   @NotNull
   SortedSet<String> getBranches();
+
+  /**
+   * @return whole paths of the branches the Rules may select versions on, including their parent branches,
+   * null if versions may be selected on any branch
+   */
+  @Nullable
+  SortedSet<String> getBranchPaths();
 }
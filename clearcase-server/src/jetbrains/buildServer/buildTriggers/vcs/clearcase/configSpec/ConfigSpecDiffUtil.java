@@ -0,0 +1,81 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.CCPathElement;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public class ConfigSpecDiffUtil {
+  private ConfigSpecDiffUtil() {
+  }
+
+  /**
+   * Collects the view subtrees whose contents may differ between two config specs.
+   * Only the rules between the common head and the common tail of the rule lists are considered changed.
+   * An element which is not in the scope of any changed standard rule and not under any changed load rule
+   * matches the same sequence of rules in both config specs, so its version stays the same.
+   *
+   * @return paths relative to the view root, null if the whole view is affected
+   */
+  @Nullable
+  public static Set<String> getAffectedPaths(@NotNull final ConfigSpec oldConfigSpec, @NotNull final ConfigSpec newConfigSpec) {
+    final Set<String> result = new TreeSet<String>();
+
+    for (ConfigSpecStandardRule rule : getChangedRules(oldConfigSpec.getStandardRules(), newConfigSpec.getStandardRules())) {
+      if (!addPath(result, rule.getScopePathPrefix())) return null;
+    }
+    for (ConfigSpecLoadRule rule : getChangedRules(oldConfigSpec.getLoadRules(), newConfigSpec.getLoadRules())) {
+      if (!addPath(result, rule.getRelativePath())) return null;
+    }
+
+    return result;
+  }
+
+  private static boolean addPath(@NotNull final Set<String> paths, @Nullable final String path) {
+    final String normalizedPath = path == null ? "" : trimSeparators(CCPathElement.normalizeSeparators(path));
+    if (normalizedPath.length() == 0) return false;
+    paths.add(normalizedPath);
+    return true;
+  }
+
+  @NotNull
+  private static String trimSeparators(@NotNull final String path) {
+    int start = 0, end = path.length();
+    while (start < end && (path.charAt(start) == '/' || path.charAt(start) == '\\')) start++;
+    while (end > start && (path.charAt(end - 1) == '/' || path.charAt(end - 1) == '\\')) end--;
+    return path.substring(start, end);
+  }
+
+  @NotNull
+  private static <T> List<T> getChangedRules(@NotNull final List<T> oldRules, @NotNull final List<T> newRules) {
+    int head = 0;
+    while (head < oldRules.size() && head < newRules.size() && oldRules.get(head).equals(newRules.get(head))) head++;
+    int oldTail = oldRules.size(), newTail = newRules.size();
+    while (oldTail > head && newTail > head && oldRules.get(oldTail - 1).equals(newRules.get(newTail - 1))) {
+      oldTail--;
+      newTail--;
+    }
+    final List<T> result = new ArrayList<T>(oldRules.subList(head, oldTail));
+    result.addAll(newRules.subList(head, newTail));
+    return result;
+  }
+}
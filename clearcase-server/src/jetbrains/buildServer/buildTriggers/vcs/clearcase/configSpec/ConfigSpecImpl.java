@@ -85,6 +85,11 @@ public class ConfigSpecImpl implements ConfigSpec {
   public List<ConfigSpecLoadRule> getLoadRules() {
     return myLoadRules;
   }
+
+  @NotNull
+  public List<ConfigSpecStandardRule> getStandardRules() {
+    return myStandardRules;
+  }
   
   private boolean doIsVersionIsInsideView(final ClearCaseConnection connection, final String fullFileName, final Version version, final boolean isFile) throws VcsException {
     final String normalizedFullFileName = CCPathElement.normalizeFileName(fullFileName);
@@ -207,6 +212,18 @@ public class ConfigSpecImpl implements ConfigSpec {
     return false;
   }
 
+  @NotNull
+  public SortedSet<String> getLabels() {
+    final SortedSet<String> labels = new TreeSet<String>();
+    for (final ConfigSpecStandardRule rule : myStandardRules) {
+      final String label = rule.getLabel();
+      if (label != null) {
+        labels.add(label);
+      }
+    }
+    return labels;
+  }
+
   @NotNull
   public SortedSet<String> getBranches() {
     final SortedSet<String> branches = new TreeSet<String>();
@@ -218,4 +235,22 @@ public class ConfigSpecImpl implements ConfigSpec {
     }
     return branches;
   }
+
+  @Nullable
+  public SortedSet<String> getBranchPaths() {
+    final SortedSet<String> branchPaths = new TreeSet<String>();
+    for (final ConfigSpecStandardRule rule : myStandardRules) {
+      // checked out versions are not in version trees
+      if (rule.isCheckedOutSelector()) continue;
+      final String branchPath = rule.getBranchPath();
+      if (branchPath == null || rule.hasMkBranchOption()) return null;
+      int pos = branchPath.indexOf(File.separatorChar, 1);
+      while (pos > 0) {
+        branchPaths.add(branchPath.substring(0, pos));
+        pos = branchPath.indexOf(File.separatorChar, pos + 1);
+      }
+      branchPaths.add(branchPath);
+    }
+    return branchPaths.isEmpty() ? null : branchPaths;
+  }
 }
@@ -17,20 +17,27 @@
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec;
 
 import java.io.*;
+import java.security.MessageDigest;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ViewPath;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.content.ElementContentCache;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class ConfigSpecParseUtil {
   public static ConfigSpec getAndSaveConfigSpec(final ViewPath viewPath, final File outputConfigSpecFile, final ClearCaseInteractiveProcess process) throws VcsException, IOException {
+    return getAndSaveConfigSpec(viewPath, outputConfigSpecFile, ClearCaseConnection.getConfigSpecInputStream(process));
+  }
+
+  public static ConfigSpec getAndSaveConfigSpec(final ViewPath viewPath, final File outputConfigSpecFile, final InputStream configSpecInputStream) throws VcsException, IOException {
     clearOldSavedVersion(outputConfigSpecFile);
     //noinspection ResultOfMethodCallIgnored
     outputConfigSpecFile.createNewFile();
 
-    return doGetConfigSpecFromStream(viewPath.getClearCaseViewPathFile(), ClearCaseConnection.getConfigSpecInputStream(process), null,
+    return doGetConfigSpecFromStream(viewPath.getClearCaseViewPathFile(), configSpecInputStream, null,
                                      new FileOutputStream(outputConfigSpecFile), outputConfigSpecFile);
   }
 
@@ -54,6 +61,47 @@ public class ConfigSpecParseUtil {
     return doGetConfigSpecFromStream(viewRoot, configSpecInputStream, inputConfigSpecFile, null, null);
   }
 
+  /**
+   * @return SHA-1 of the config spec rules with the included files expanded,
+   * comments and the layout of the text do not change it
+   */
+  @NotNull
+  public static String getNormalizedHash(final InputStream configSpecInputStream) throws VcsException {
+    final StringBuilder rules = new StringBuilder();
+    readConfigSpecFromStream(new ConfigSpecRulesProcessor() {
+      public void processLoadRule(final String rule) {
+        rules.append(ConfigSpecRuleTokens.LOAD).append(' ').append(rule).append('\n');
+      }
+
+      public void processTimeRule(final String rule, final boolean isBlockStart) {
+        appendBlockRule(ConfigSpecRuleTokens.TIME, rule, isBlockStart);
+      }
+
+      public void processCreateBranchRule(final String rule, final boolean isBlockStart) {
+        appendBlockRule(ConfigSpecRuleTokens.CREATE_BRANCH, rule, isBlockStart);
+      }
+
+      public void processStandartRule(final String scope, final String pattern, final String rule) {
+        rules.append(scope).append(' ').append(pattern).append(' ').append(rule.replaceAll("\\s+", " ")).append('\n');
+      }
+
+      private void appendBlockRule(final String token, final String rule, final boolean isBlockStart) {
+        if (!isBlockStart) {
+          rules.append(ConfigSpecRuleTokens.BLOCK_RULE_END).append(' ');
+        }
+        rules.append(token).append(' ').append(rule.replaceAll("\\s+", " ")).append('\n');
+      }
+    }, configSpecInputStream, null, null, null, 0);
+    try {
+      final MessageDigest digest = ElementContentCache.createDigest();
+      digest.update(rules.toString().getBytes("UTF-8"));
+      return ElementContentCache.toHex(digest.digest());
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   private static ConfigSpec doGetConfigSpecFromStream(final File viewRoot,
                                                       final InputStream configSpecInputStream,
                                                       @Nullable final File inputConfigSpecFile,
@@ -37,11 +37,13 @@ public class ConfigSpecStandardRule {
   @NonNls @NotNull private static final String ELLIPSIS = "...";
   private final ScopeType myScopeType;
   protected final Pattern myScopePattern;
+  @NotNull private final String myScopePathPrefix;
   protected final Pattern myBranchPattern;
   protected final String myVersion;
   private final String myMkBranchOption;
   private final boolean myIsLabelSelector;
   @Nullable private String myPrimaryBranch;
+  @Nullable private String myBranchPath;
 
   public ResultType isVersionIsInsideView(final Version version) {
     final String versionFullName = version.getWholeName();
@@ -207,6 +209,7 @@ public class ConfigSpecStandardRule {
       myScopeType = ScopeType.ANY;
     }
     myScopePattern = createPattern(removeFirstSeparatorIfNeeded(scopePattern.trim()), false);
+    myScopePathPrefix = extractPathPrefix(scopePattern.trim());
     if (versionSelectorWithOptions.startsWith("{")) {
       //todo
     }
@@ -221,6 +224,7 @@ public class ConfigSpecStandardRule {
       final String branchPathSelector = normalizedVersionSelector.substring(0, lastSeparatorPos);
       myBranchPattern = createPattern(branchPathSelector, true);
       detectPrimaryBranch(branchPathSelector);
+      detectBranchPath(branchPathSelector);
     }
     myVersion = normalizedVersionSelector.substring(lastSeparatorPos + 1);
     if (myVersion.startsWith("{")) {
@@ -240,6 +244,14 @@ public class ConfigSpecStandardRule {
     }
   }
 
+  private void detectBranchPath(@NotNull final String branchPathSelector) {
+    if (!branchPathSelector.startsWith(File.separator) || branchPathSelector.contains(ELLIPSIS) ||
+        branchPathSelector.contains("*") || branchPathSelector.contains("?")) {
+      return;
+    }
+    myBranchPath = branchPathSelector;
+  }
+
   private boolean isLabelBasedSelector() {
     return !Util.isDigit(myVersion)/*StringUtil.isNumber(myVersion)*/
            && !ConfigSpecRuleTokens.CHECKEDOUT.equalsIgnoreCase(myVersion)
@@ -253,6 +265,18 @@ public class ConfigSpecStandardRule {
     return scopePattern;
   }
 
+  @NotNull
+  private static String extractPathPrefix(@NotNull final String scopePattern) {
+    final StringBuilder sb = new StringBuilder();
+    for (String name : CCPathElement.normalizeSeparators(scopePattern).split(escapeBackSlash(File.separator))) {
+      if (name.length() == 0) continue;
+      if (name.contains("*") || name.contains("?") || name.contains(ELLIPSIS)) break;
+      if (sb.length() > 0) sb.append(File.separatorChar);
+      sb.append(name);
+    }
+    return sb.toString();
+  }
+
   @Nullable
   private String getMkBranchOption(final String s) {
     boolean wordShouldBeReturned = false;
@@ -375,8 +399,42 @@ public class ConfigSpecStandardRule {
 		return myIsLabelSelector;
 	}
 
+  /**
+   * @return the label the Version Selector refers to or null if it does not refer to a label
+   */
+  @Nullable
+  public String getLabel() {
+    return myIsLabelSelector ? myVersion : null;
+  }
+
   @Nullable
   public String getPrimaryBranch() {
     return myPrimaryBranch;
   }
+
+  /**
+   * @return the whole path of the branch the Version Selector selects versions on, like "/main/release",
+   * null if the selector may select versions on different branches
+   */
+  @Nullable
+  public String getBranchPath() {
+    return myBranchPath;
+  }
+
+  public boolean isCheckedOutSelector() {
+    return ConfigSpecRuleTokens.CHECKEDOUT.equalsIgnoreCase(myVersion);
+  }
+
+  public boolean hasMkBranchOption() {
+    return myMkBranchOption != null;
+  }
+
+  /**
+   * @return the longest wildcard-free leading part of the scope pattern relative to the view root,
+   * empty string if the rule may match elements anywhere in the view
+   */
+  @NotNull
+  public String getScopePathPrefix() {
+    return myScopePathPrefix;
+  }
 }
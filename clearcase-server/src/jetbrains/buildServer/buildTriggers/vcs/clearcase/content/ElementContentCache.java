@@ -0,0 +1,417 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.content;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.CCParseUtil;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.CCPathElement;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseFileAttr;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.Dates;
+import jetbrains.buildServer.util.FileUtil;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Cache of element version contents. A version addressed by a fully version-extended path with numbered versions
+ * never changes, so its content and attributes can be reused by all patches and content requests.
+ * Small contents are kept in memory, all contents are stored on disk once per distinct content hash.
+ * The lock is held for the index lookups only: the data files are read and copied outside of it, pinned so they are not evicted meanwhile.
+ * The key files of a data file are evicted together with it.
+ */
+public class ElementContentCache {
+  private static final Logger LOG = Logger.getLogger(ElementContentCache.class);
+
+  private static final String MEMORY_SIZE_PROPERTY = "clearcase.content.cache.memory.mb";
+  private static final String MEMORY_MAX_FILE_SIZE_PROPERTY = "clearcase.content.cache.memory.max.file.kb";
+  private static final String DISK_SIZE_PROPERTY = "clearcase.content.cache.disk.mb";
+  private static final Pattern NUMBERED_VERSION_PATTERN = Pattern.compile(".*[/\\\\]\\d+");
+  private static final String KEYS_DIR = "keys";
+  private static final String DATA_DIR = "data";
+  private static final String INCOMING_DIR = "incoming";
+
+  private final @NotNull File myKeysDir;
+  private final @NotNull File myDataDir;
+  private final @NotNull File myIncomingDir;
+  private final @NotNull LinkedHashMap<String, byte[]> myMemoryTier = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+  private long myMemorySize;
+  private final @NotNull LinkedHashMap<File, Long> myDataFiles = new LinkedHashMap<File, Long>(16, 0.75f, true);
+  private final @NotNull Map<File, Set<File>> myDataKeys = new HashMap<File, Set<File>>();
+  private final @NotNull Map<File, Integer> myPinnedFiles = new HashMap<File, Integer>();
+  private long myDataSize;
+  private boolean myDataFilesLoaded;
+
+  public ElementContentCache(final @NotNull File baseDir) {
+    myKeysDir = new File(baseDir, KEYS_DIR);
+    myDataDir = new File(baseDir, DATA_DIR);
+    myIncomingDir = new File(baseDir, INCOMING_DIR);
+  }
+
+  /**
+   * @return true if the path always addresses the same version: the element and all the directories under the view path
+   * are selected by their version numbers, not through the config spec of the view
+   */
+  public static boolean isCacheable(final @NotNull String versionPath, final @NotNull String viewPath) {
+    final List<CCPathElement> pathElements = CCPathElement.splitIntoPathAntVersions(versionPath, viewPath, 1);
+    if (pathElements.isEmpty()) return false;
+    for (CCPathElement pathElement : pathElements) {
+      if (!pathElement.isIsFromViewPath() && !isNumbered(pathElement.getVersion())) return false;
+    }
+    return !pathElements.get(pathElements.size() - 1).isIsFromViewPath();
+  }
+
+  private static boolean isNumbered(final @Nullable String version) {
+    if (version == null) return false;
+    final String versionName = version.startsWith(CCParseUtil.CC_VERSION_SEPARATOR) ? version.substring(CCParseUtil.CC_VERSION_SEPARATOR.length()) : version;
+    return !versionName.contains("CHECKEDOUT") && NUMBERED_VERSION_PATTERN.matcher(versionName).matches();
+  }
+
+  /**
+   * @return the content kept in memory or loaded from the cached content file, null if the version is not cached
+   * @throws IOException if the cached content is larger than maxSize
+   */
+  @Nullable
+  public byte[] getBytes(final @NotNull String versionPath, final long maxSize) throws IOException {
+    synchronized (this) {
+      final byte[] bytes = myMemoryTier.get(versionPath);
+      if (bytes != null) return bytes;
+    }
+    final File file = pin(versionPath);
+    if (file == null) return null;
+    try {
+      if (file.length() > maxSize) {
+        throw new IOException("Content of " + versionPath + " is too large: " + file.length() + " bytes, the limit is " + maxSize + " bytes");
+      }
+      final byte[] loaded = FileUtil.loadFileBytes(file);
+      synchronized (this) {
+        putToMemory(versionPath, loaded);
+      }
+      return loaded;
+    } finally {
+      unpin(file);
+    }
+  }
+
+  public synchronized boolean contains(final @NotNull String versionPath) {
+    return findDataFile(versionPath) != null;
+  }
+
+  /**
+   * Copies the cached content of the version, the copy stays valid when the cached file is evicted.
+   * @return false if the version is not cached
+   */
+  public boolean copyFile(final @NotNull String versionPath, final @NotNull File destFile) throws IOException {
+    final File file = pin(versionPath);
+    if (file == null) return false;
+    try {
+      FileUtil.copy(file, destFile);
+      return true;
+    } finally {
+      unpin(file);
+    }
+  }
+
+  /**
+   * @return the cached content file of the version, it is not evicted until {@link #unpin unpinned}; null if the version is not cached
+   */
+  @Nullable
+  private synchronized File pin(final @NotNull String versionPath) {
+    final File dataFile = findDataFile(versionPath);
+    if (dataFile == null) return null;
+    final Integer count = myPinnedFiles.get(dataFile);
+    myPinnedFiles.put(dataFile, count == null ? 1 : count + 1);
+    return dataFile;
+  }
+
+  private synchronized void unpin(final @NotNull File dataFile) {
+    final Integer count = myPinnedFiles.remove(dataFile);
+    if (count != null && count > 1) {
+      myPinnedFiles.put(dataFile, count - 1);
+    } else {
+      evictData();
+    }
+  }
+
+  @Nullable
+  private File findDataFile(final @NotNull String versionPath) {
+    ensureDataFilesLoaded();
+    final File keyFile = getKeyFile(versionPath);
+    if (!keyFile.isFile()) return null;
+    final String hash = readKey(keyFile)[0];
+    final File dataFile = hash == null ? null : getDataFile(hash);
+    if (dataFile == null || myDataFiles.get(dataFile) == null) { // get() touches the data file
+      FileUtil.delete(keyFile);
+      if (dataFile != null) {
+        final Set<File> keyFiles = myDataKeys.get(dataFile);
+        if (keyFiles != null) {
+          keyFiles.remove(keyFile);
+        }
+      }
+      return null;
+    }
+    return dataFile;
+  }
+
+  /**
+   * @return a new file in the cache directory to load a version content into, so that the content can be
+   * {@link #adopt adopted} without copying
+   */
+  @NotNull
+  public File createIncomingFile() throws IOException {
+    if (!myIncomingDir.isDirectory() && !myIncomingDir.mkdirs()) {
+      throw new IOException("Cannot create directory " + myIncomingDir.getPath());
+    }
+    return File.createTempFile("cc", ".tmp", myIncomingDir);
+  }
+
+  /**
+   * @return the attributes of the cached version, null if they were not cached with its content
+   */
+  @Nullable
+  public synchronized ClearCaseFileAttr getFileAttr(final @NotNull String versionPath) {
+    final String attr = readKey(getKeyFile(versionPath))[1];
+    return attr == null ? null : new ClearCaseFileAttr(attr.contains("x"), attr.contains("t"));
+  }
+
+  /**
+   * Moves the file with the content of the {@link #isCacheable cacheable} version into the cache.
+   * @param contentHash hex {@link #createDigest digest} of the file content
+   * @param fileAttr the attributes of the version to cache along with the content, if known
+   */
+  public void adopt(final @NotNull String versionPath, final @NotNull File file, final @NotNull String contentHash, final @Nullable ClearCaseFileAttr fileAttr) {
+    if (contentHash.length() < 2) return;
+    try {
+      final File dataFile = getDataFile(contentHash);
+      final byte[] bytes = file.length() <= getMemoryMaxFileSize() ? FileUtil.loadFileBytes(file) : null;
+      synchronized (this) {
+        ensureDataFilesLoaded();
+        if (!dataFile.isFile()) {
+          FileUtil.createParentDirs(dataFile);
+          if (!file.renameTo(dataFile)) return;
+          myDataFiles.put(dataFile, dataFile.length());
+          myDataSize += dataFile.length();
+        }
+        final File keyFile = getKeyFile(versionPath);
+        writeKey(keyFile, contentHash, fileAttr);
+        addKey(dataFile, keyFile);
+        if (bytes != null) {
+          putToMemory(versionPath, bytes);
+        }
+        evictData();
+      }
+    } catch (IOException e) {
+      LOG.debug("Cannot cache content of " + versionPath + ": " + e.getLocalizedMessage());
+    } finally {
+      FileUtil.delete(file);
+    }
+  }
+
+  private void putToMemory(final @NotNull String versionPath, final @NotNull byte[] bytes) {
+    if (bytes.length > getMemoryMaxFileSize()) return;
+    final byte[] previous = myMemoryTier.put(versionPath, bytes);
+    if (previous != null) {
+      myMemorySize -= previous.length;
+    }
+    myMemorySize += bytes.length;
+    final long maxSize = TeamCityProperties.getInteger(MEMORY_SIZE_PROPERTY, 32) * 1024L * 1024L;
+    for (Iterator<byte[]> it = myMemoryTier.values().iterator(); it.hasNext() && myMemorySize > maxSize;) {
+      myMemorySize -= it.next().length;
+      it.remove();
+    }
+  }
+
+  private void evictData() {
+    final long maxSize = TeamCityProperties.getInteger(DISK_SIZE_PROPERTY, 2048) * 1024L * 1024L;
+    for (Iterator<Map.Entry<File, Long>> it = myDataFiles.entrySet().iterator(); it.hasNext() && myDataSize > maxSize;) {
+      final Map.Entry<File, Long> entry = it.next();
+      if (myPinnedFiles.containsKey(entry.getKey())) continue;
+      myDataSize -= entry.getValue();
+      FileUtil.delete(entry.getKey());
+      it.remove();
+      final Set<File> keyFiles = myDataKeys.remove(entry.getKey());
+      if (keyFiles != null) {
+        for (File keyFile : keyFiles) {
+          FileUtil.delete(keyFile);
+        }
+      }
+    }
+  }
+
+  private void addKey(final @NotNull File dataFile, final @NotNull File keyFile) {
+    Set<File> keyFiles = myDataKeys.get(dataFile);
+    if (keyFiles == null) {
+      keyFiles = new HashSet<File>();
+      myDataKeys.put(dataFile, keyFiles);
+    }
+    keyFiles.add(keyFile);
+  }
+
+  private static long getMemoryMaxFileSize() {
+    return TeamCityProperties.getInteger(MEMORY_MAX_FILE_SIZE_PROPERTY, 256) * 1024L;
+  }
+
+  private void ensureDataFilesLoaded() {
+    if (myDataFilesLoaded) return;
+    myDataFilesLoaded = true;
+    final File[] incomingFiles = myIncomingDir.listFiles();
+    if (incomingFiles != null) {
+      for (File file : incomingFiles) {
+        if (System.currentTimeMillis() - file.lastModified() > Dates.ONE_DAY) {
+          FileUtil.delete(file);
+        }
+      }
+    }
+    final List<File> files = listFiles(myDataDir);
+    Collections.sort(files, new Comparator<File>() {
+      public int compare(final File o1, final File o2) {
+        final long diff = o1.lastModified() - o2.lastModified();
+        return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+      }
+    });
+    for (File file : files) {
+      myDataFiles.put(file, file.length());
+      myDataSize += file.length();
+    }
+    // key files of the data files which are gone are deleted
+    for (File keyFile : listFiles(myKeysDir)) {
+      final String hash = readKey(keyFile)[0];
+      final File dataFile = hash == null ? null : getDataFile(hash);
+      if (dataFile != null && myDataFiles.containsKey(dataFile)) {
+        addKey(dataFile, keyFile);
+      } else {
+        FileUtil.delete(keyFile);
+      }
+    }
+  }
+
+  /**
+   * @return the files in the subdirectories of the dir
+   */
+  @NotNull
+  private static List<File> listFiles(final @NotNull File dir) {
+    final List<File> files = new ArrayList<File>();
+    final File[] subDirs = dir.listFiles();
+    if (subDirs == null) return files;
+    for (File subDir : subDirs) {
+      final File[] subDirFiles = subDir.listFiles();
+      if (subDirFiles != null) {
+        files.addAll(Arrays.asList(subDirFiles));
+      }
+    }
+    return files;
+  }
+
+  @NotNull
+  private File getKeyFile(final @NotNull String versionPath) {
+    final String keyHash = calculateHash(versionPath);
+    return new File(new File(myKeysDir, keyHash.substring(0, 2)), keyHash);
+  }
+
+  @NotNull
+  private File getDataFile(final @NotNull String hash) {
+    return new File(new File(myDataDir, hash.substring(0, 2)), hash);
+  }
+
+  /**
+   * @return the content hash and the attributes of the version, the elements are null if the key file has no such data
+   */
+  @NotNull
+  private static String[] readKey(final @NotNull File keyFile) {
+    final String[] result = new String[2];
+    if (!keyFile.isFile()) return result;
+    try {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(keyFile), "UTF-8"));
+      try {
+        final String hash = reader.readLine();
+        if (hash == null || hash.length() < 2) return result;
+        result[0] = hash;
+        result[1] = reader.readLine();
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      //ignore
+    }
+    return result;
+  }
+
+  private static void writeKey(final @NotNull File keyFile, final @NotNull String hash, final @Nullable ClearCaseFileAttr fileAttr) throws IOException {
+    FileUtil.createParentDirs(keyFile);
+    final Writer writer = new OutputStreamWriter(new FileOutputStream(keyFile), "UTF-8");
+    try {
+      writer.write(hash);
+      if (fileAttr != null) {
+        writer.write("\n" + (fileAttr.isIsText() ? "t" : "") + (fileAttr.isIsExecutable() ? "x" : "") + "-");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  @NotNull
+  private static String calculateHash(final @NotNull String text) {
+    try {
+      final MessageDigest digest = createDigest();
+      digest.update(text.getBytes("UTF-8"));
+      return toHex(digest.digest());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return hex {@link #createDigest digest} of the file content, the file is read by chunks
+   */
+  @NotNull
+  public static String calculateHash(final @NotNull File file) throws IOException {
+    final MessageDigest digest = createDigest();
+    final InputStream input = new FileInputStream(file);
+    try {
+      final byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = input.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      input.close();
+    }
+    return toHex(digest.digest());
+  }
+
+  @NotNull
+  public static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  public static String toHex(final @NotNull byte[] bytes) {
+    final StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+}
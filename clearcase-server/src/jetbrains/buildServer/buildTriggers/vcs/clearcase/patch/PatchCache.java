@@ -0,0 +1,524 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.patch;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.Hash;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.patches.PatchBuilder;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Cache of built patches. The first request for a patch records all calls to the patch builder into a file while
+ * the patch is being sent, all later requests for the same patch replay the recorded calls without accessing ClearCase.
+ * Concurrent requests for the same patch wait for the first one to finish.
+ */
+public class PatchCache {
+  private static final Logger LOG = Logger.getLogger(PatchCache.class);
+
+  private static final String MAX_SIZE_PROPERTY = "clearcase.patch.cache.max.size.mb";
+  private static final int DEFAULT_MAX_SIZE_MB = 2048;
+  private static final String PATCH_FILE_SUFFIX = ".patch";
+
+  private static final byte TAG_NULL = 0;
+  private static final byte TAG_FILE = 1;
+  private static final byte TAG_STRING = 2;
+  private static final byte TAG_BOOLEAN = 3;
+  private static final byte TAG_INT = 4;
+  private static final byte TAG_LONG = 5;
+  private static final byte TAG_BYTES = 6;
+  private static final byte TAG_STREAM = 7;
+
+  private final @NotNull File myBaseDir;
+  private final @NotNull Map<String, KeyLock> myLocks = new HashMap<String, KeyLock>();
+  private final @NotNull LinkedHashMap<File, Long> myFiles = new LinkedHashMap<File, Long>(16, 0.75f, true);
+  private long myTotalSize;
+  private boolean myFilesLoaded;
+
+  public PatchCache(final @NotNull File baseDir) {
+    myBaseDir = baseDir;
+  }
+
+  public interface PatchProducer {
+    void buildPatch(@NotNull PatchBuilder builder) throws IOException, VcsException;
+  }
+
+  /**
+   * @return key of the patch, all parameters which affect the patch content must be included
+   * @param rootPropertiesHash hash of the root settings, the root id stays the same when they are edited
+   * @param labelsFingerprint fingerprint of the labels the config spec refers to, they may be moved while the versions stay the same
+   */
+  @NotNull
+  public static String createKey(final long rootId,
+                                 final int rootPropertiesHash,
+                                 final @NotNull String includeRule,
+                                 final @Nullable String fromVersion,
+                                 final @NotNull String toVersion,
+                                 final int configSpecHash,
+                                 final @Nullable String labelsFingerprint) {
+    return rootId + "\n" + rootPropertiesHash + "\n" + includeRule + "\n" + fromVersion + "\n" + toVersion + "\n" + configSpecHash +
+           (labelsFingerprint == null ? "" : "\n" + labelsFingerprint);
+  }
+
+  /**
+   * Replays the cached patch into the builder or, if the patch is not cached yet, builds it with the producer
+   * and records it.
+   */
+  public void buildPatch(final @NotNull String key, final @NotNull PatchBuilder builder, final @NotNull PatchProducer producer)
+    throws IOException, VcsException {
+    final File patchFile = new File(myBaseDir, Hash.calc(key) + PATCH_FILE_SUFFIX);
+    final KeyLock lock = lock(key);
+    try {
+      if (touch(patchFile)) {
+        LOG.debug("Replaying cached patch " + patchFile.getName());
+        replay(patchFile, builder);
+        return;
+      }
+      record(patchFile, builder, producer);
+    }
+    finally {
+      unlock(key, lock);
+    }
+  }
+
+  @NotNull
+  private KeyLock lock(final @NotNull String key) {
+    final KeyLock lock;
+    synchronized (myLocks) {
+      KeyLock existing = myLocks.get(key);
+      if (existing == null) {
+        existing = new KeyLock();
+        myLocks.put(key, existing);
+      }
+      existing.myUsers++;
+      lock = existing;
+    }
+    lock.myLock.lock();
+    return lock;
+  }
+
+  private void unlock(final @NotNull String key, final @NotNull KeyLock lock) {
+    lock.myLock.unlock();
+    synchronized (myLocks) {
+      if (--lock.myUsers == 0) {
+        myLocks.remove(key);
+      }
+    }
+  }
+
+  private void record(final @NotNull File patchFile, final @NotNull PatchBuilder builder, final @NotNull PatchProducer producer)
+    throws IOException, VcsException {
+    File tempFile = null;
+    DataOutputStream output = null;
+    try {
+      FileUtil.createDir(myBaseDir);
+      tempFile = File.createTempFile("patch", ".tmp", myBaseDir);
+      output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot create patch cache file in " + myBaseDir + ": " + e.getLocalizedMessage());
+    }
+
+    final RecordingHandler handler = new RecordingHandler(builder, output);
+    try {
+      producer.buildPatch((PatchBuilder)Proxy.newProxyInstance(PatchBuilder.class.getClassLoader(), new Class[]{PatchBuilder.class}, handler));
+      if (output != null && !handler.myBroken) {
+        output.writeBoolean(false);
+        output.close();
+        output = null;
+        if (tempFile.renameTo(patchFile)) {
+          added(patchFile);
+        }
+      }
+    }
+    finally {
+      if (output != null) {
+        try {
+          output.close();
+        }
+        catch (IOException e) {
+          //ignore
+        }
+      }
+      if (tempFile != null) {
+        FileUtil.delete(tempFile);
+      }
+    }
+  }
+
+  private static void replay(final @NotNull File patchFile, final @NotNull PatchBuilder builder) throws IOException {
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(patchFile)));
+    try {
+      while (input.readBoolean()) {
+        final String methodName = input.readUTF();
+        final int argCount = input.readInt();
+        final String[] argTypes = new String[argCount];
+        final Object[] args = new Object[argCount];
+        ChunkedInputStream content = null;
+        for (int i = 0; i < argCount; i++) {
+          argTypes[i] = input.readUTF();
+          final byte tag = input.readByte();
+          switch (tag) {
+            case TAG_NULL: args[i] = null; break;
+            case TAG_FILE: args[i] = new File(input.readUTF()); break;
+            case TAG_STRING: args[i] = input.readUTF(); break;
+            case TAG_BOOLEAN: args[i] = input.readBoolean(); break;
+            case TAG_INT: args[i] = input.readInt(); break;
+            case TAG_LONG: args[i] = input.readLong(); break;
+            case TAG_BYTES:
+              final byte[] bytes = new byte[input.readInt()];
+              input.readFully(bytes);
+              args[i] = bytes;
+              break;
+            case TAG_STREAM:
+              content = new ChunkedInputStream(input);
+              args[i] = content;
+              break;
+            default:
+              throw new IOException("Corrupted patch cache file " + patchFile + ": unknown argument tag " + tag);
+          }
+        }
+        invoke(findMethod(methodName, argTypes), builder, args);
+        if (content != null) {
+          content.skipToEnd();
+        }
+      }
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  @NotNull
+  private static Method findMethod(final @NotNull String name, final @NotNull String[] argTypes) throws IOException {
+    for (Method method : PatchBuilder.class.getMethods()) {
+      if (!method.getName().equals(name) || method.getParameterTypes().length != argTypes.length) continue;
+      boolean matches = true;
+      for (int i = 0; i < argTypes.length && matches; i++) {
+        matches = method.getParameterTypes()[i].getName().equals(argTypes[i]);
+      }
+      if (matches) return method;
+    }
+    throw new IOException("Cannot replay cached patch: method " + name + " is not found");
+  }
+
+  private static Object invoke(final @NotNull Method method, final @NotNull Object target, final @Nullable Object[] args) throws IOException {
+    try {
+      return method.invoke(target, args);
+    }
+    catch (IllegalAccessException e) {
+      throw new IOException(e.getLocalizedMessage());
+    }
+    catch (InvocationTargetException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      final IOException ioe = new IOException(cause.getLocalizedMessage());
+      ioe.initCause(cause);
+      throw ioe;
+    }
+  }
+
+  private synchronized boolean touch(final @NotNull File patchFile) {
+    ensureFilesLoaded();
+    if (!patchFile.isFile()) {
+      final Long size = myFiles.remove(patchFile);
+      if (size != null) {
+        myTotalSize -= size;
+      }
+      return false;
+    }
+    if (myFiles.get(patchFile) == null) {
+      myFiles.put(patchFile, patchFile.length());
+      myTotalSize += patchFile.length();
+    }
+    return true;
+  }
+
+  private synchronized void added(final @NotNull File patchFile) {
+    ensureFilesLoaded();
+    final Long old = myFiles.put(patchFile, patchFile.length());
+    myTotalSize += patchFile.length() - (old == null ? 0 : old);
+    final long maxSize = TeamCityProperties.getInteger(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE_MB) * 1024L * 1024L;
+    for (Iterator<Map.Entry<File, Long>> it = myFiles.entrySet().iterator(); it.hasNext() && myTotalSize > maxSize;) {
+      final Map.Entry<File, Long> entry = it.next();
+      if (entry.getKey().equals(patchFile)) continue;
+      FileUtil.delete(entry.getKey());
+      myTotalSize -= entry.getValue();
+      it.remove();
+    }
+  }
+
+  private void ensureFilesLoaded() {
+    if (myFilesLoaded) return;
+    myFilesLoaded = true;
+    final File[] files = myBaseDir.listFiles();
+    if (files == null) return;
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(final File o1, final File o2) {
+        final long diff = o1.lastModified() - o2.lastModified();
+        return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+      }
+    });
+    for (File file : files) {
+      if (file.getName().endsWith(PATCH_FILE_SUFFIX)) {
+        myFiles.put(file, file.length());
+        myTotalSize += file.length();
+      }
+      else {
+        FileUtil.delete(file); // unfinished recording
+      }
+    }
+  }
+
+  private static class KeyLock {
+    private final @NotNull ReentrantLock myLock = new ReentrantLock();
+    private int myUsers;
+  }
+
+  /**
+   * Forwards all calls to the patch builder and records them. Stream content is recorded as it is read by the builder.
+   * If a call cannot be recorded, the recording is abandoned but the patch is still built.
+   */
+  private static class RecordingHandler implements InvocationHandler {
+    private final @NotNull PatchBuilder myBuilder;
+    private final @Nullable DataOutputStream myOutput;
+    private boolean myBroken;
+
+    private RecordingHandler(final @NotNull PatchBuilder builder, final @Nullable DataOutputStream output) {
+      myBuilder = builder;
+      myOutput = output;
+      myBroken = output == null;
+    }
+
+    public synchronized Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        return PatchCache.invoke(method, myBuilder, args);
+      }
+      final Object[] builderArgs = args == null ? null : args.clone();
+      RecordingInputStream content = null;
+      if (!myBroken) {
+        try {
+          content = writeCall(method, builderArgs);
+        }
+        catch (IOException e) {
+          abandon(e);
+        }
+      }
+      try {
+        final Object result = PatchCache.invoke(method, myBuilder, builderArgs);
+        if (content != null) {
+          content.finish();
+        }
+        return result;
+      }
+      catch (IOException e) {
+        myBroken = true;
+        throw e;
+      }
+      catch (RuntimeException e) {
+        myBroken = true;
+        throw e;
+      }
+    }
+
+    @Nullable
+    private RecordingInputStream writeCall(final @NotNull Method method, final @Nullable Object[] args) throws IOException {
+      assert myOutput != null;
+      final Class<?>[] types = method.getParameterTypes();
+      RecordingInputStream content = null;
+      myOutput.writeBoolean(true);
+      myOutput.writeUTF(method.getName());
+      myOutput.writeInt(types.length);
+      for (int i = 0; i < types.length; i++) {
+        final Object arg = args == null ? null : args[i];
+        myOutput.writeUTF(types[i].getName());
+        if (arg == null) {
+          myOutput.writeByte(TAG_NULL);
+        }
+        else if (arg instanceof File) {
+          myOutput.writeByte(TAG_FILE);
+          myOutput.writeUTF(((File)arg).getPath());
+        }
+        else if (arg instanceof String) {
+          myOutput.writeByte(TAG_STRING);
+          myOutput.writeUTF((String)arg);
+        }
+        else if (arg instanceof Boolean) {
+          myOutput.writeByte(TAG_BOOLEAN);
+          myOutput.writeBoolean((Boolean)arg);
+        }
+        else if (arg instanceof Integer) {
+          myOutput.writeByte(TAG_INT);
+          myOutput.writeInt((Integer)arg);
+        }
+        else if (arg instanceof Long) {
+          myOutput.writeByte(TAG_LONG);
+          myOutput.writeLong((Long)arg);
+        }
+        else if (arg instanceof byte[]) {
+          myOutput.writeByte(TAG_BYTES);
+          myOutput.writeInt(((byte[])arg).length);
+          myOutput.write((byte[])arg);
+        }
+        else if (arg instanceof InputStream && content == null) {
+          myOutput.writeByte(TAG_STREAM);
+          content = new RecordingInputStream((InputStream)arg);
+          args[i] = content;
+        }
+        else {
+          throw new IOException("Cannot record argument of type " + arg.getClass().getName() + " of method " + method.getName());
+        }
+      }
+      return content;
+    }
+
+    private void abandon(final @NotNull IOException e) {
+      if (!myBroken) {
+        LOG.warn("Patch will not be cached: " + e.getLocalizedMessage());
+      }
+      myBroken = true;
+    }
+
+    /**
+     * Writes the read content into the patch cache file in chunks, the end of the content is marked by an empty chunk.
+     */
+    private class RecordingInputStream extends FilterInputStream {
+      private RecordingInputStream(final @NotNull InputStream in) {
+        super(in);
+      }
+
+      @Override
+      public int read() throws IOException {
+        final int b = super.read();
+        if (b != -1) {
+          record(new byte[]{(byte)b}, 0, 1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+        final int read = super.read(b, off, len);
+        if (read > 0) {
+          record(b, off, read);
+        }
+        return read;
+      }
+
+      @Override
+      public long skip(final long n) throws IOException {
+        final byte[] buffer = new byte[(int)Math.min(n, 8192)];
+        final int read = read(buffer, 0, buffer.length);
+        return read < 0 ? 0 : read;
+      }
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+
+      private void finish() {
+        if (myBroken) return;
+        try {
+          // the builder could stop reading before the end of the stream
+          final byte[] buffer = new byte[8192];
+          while (!myBroken && read(buffer, 0, buffer.length) >= 0) {
+            //read the rest
+          }
+          record(buffer, 0, 0);
+        }
+        catch (IOException e) {
+          abandon(e);
+        }
+      }
+
+      private void record(final byte[] b, final int off, final int len) {
+        if (myBroken) return;
+        assert myOutput != null;
+        try {
+          myOutput.writeInt(len);
+          myOutput.write(b, off, len);
+        }
+        catch (IOException e) {
+          abandon(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the content written by {@link RecordingHandler.RecordingInputStream}.
+   */
+  private static class ChunkedInputStream extends InputStream {
+    private final @NotNull DataInputStream myInput;
+    private int myChunkLeft;
+    private boolean myEnd;
+
+    private ChunkedInputStream(final @NotNull DataInputStream input) {
+      myInput = input;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!nextChunk()) return -1;
+      myChunkLeft--;
+      return myInput.read();
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (len == 0) return 0;
+      if (!nextChunk()) return -1;
+      final int read = myInput.read(b, off, Math.min(len, myChunkLeft));
+      if (read < 0) throw new EOFException();
+      myChunkLeft -= read;
+      return read;
+    }
+
+    @Override
+    public void close() {
+      // the underlying stream is closed by the replay
+    }
+
+    private boolean nextChunk() throws IOException {
+      while (!myEnd && myChunkLeft == 0) {
+        myChunkLeft = myInput.readInt();
+        myEnd = myChunkLeft == 0;
+      }
+      return !myEnd;
+    }
+
+    private void skipToEnd() throws IOException {
+      final byte[] buffer = new byte[8192];
+      while (read(buffer, 0, buffer.length) >= 0) {
+        //skip the rest
+      }
+    }
+  }
+}
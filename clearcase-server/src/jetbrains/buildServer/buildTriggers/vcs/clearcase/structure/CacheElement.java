@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.*;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.IncludeRule;
@@ -29,6 +30,7 @@ import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class CacheElement {
   private static final Logger LOG = Logger.getLogger(CacheElement.class);
@@ -64,26 +66,54 @@ public class CacheElement {
   }
 
   public void processAllVersions(final VersionProcessor versionProcessor, boolean processRoot, ClearCaseConnection connection) throws VcsException {
+    processAllVersions(versionProcessor, processRoot, connection, "");
+  }
+
+  /**
+   * Processes the subtree of the snapshot located at the slicePath (relative to the cache path),
+   * the connection must point to that subtree.
+   */
+  public void processAllVersions(final VersionProcessor versionProcessor,
+                                 final boolean processRoot,
+                                 final ClearCaseConnection connection,
+                                 final @NotNull String slicePath) throws VcsException {
     try {
-      if (!myCacheFile.exists()) {
-        CacheElement nearestCache = myOwner.getNearestExistingCache(myVersion, myPath, myIncludeRule, myRoot);
-        if (nearestCache == null) {
-          LOG.debug("ClearCase cache " + myCacheFile.getPath() + " loading all versions");
-          loadAllRevisions(myVersion, connection);
+      if (!hasData()) {
+        if (myPath.equals(connection.getViewWholePath())) {
+          load(connection);
         }
         else {
-          LOG.debug("ClearCase cache " + myCacheFile.getPath() + " loading differences from " + nearestCache.getVersion().asString());
-          loadDifferences(nearestCache, connection);
+          myParentSupport.withConnection(myRoot, myIncludeRule, null, new ClearCaseSupport.ConnectionProcessor() {
+            public void process(@NotNull final ClearCaseConnection rootConnection) throws VcsException, IOException {
+              load(rootConnection);
+            }
+          });
         }
       }
 
-      processAllVersionsInternal(versionProcessor, processRoot, connection);
+      processAllVersionsInternal(versionProcessor, processRoot, connection, slicePath);
     }
     catch (final IOException e) {
       connection.processAllVersions(myVersion, versionProcessor, processRoot, false);
     }
   }
 
+  private void load(final ClearCaseConnection connection) throws IOException, VcsException {
+    CacheElement nearestCache = myOwner.getNearestExistingCache(myVersion, myPath, myIncludeRule, myRoot);
+    if (nearestCache == null) {
+      nearestCache = loadFromPreviousConfigSpec();
+      if (hasData()) return;
+    }
+    if (nearestCache == null) {
+      LOG.debug("ClearCase cache " + myCacheFile.getPath() + " loading all versions");
+      loadAllRevisions(myVersion, connection);
+    }
+    else {
+      LOG.debug("ClearCase cache " + myCacheFile.getPath() + " loading differences from " + nearestCache.getVersion().asString());
+      loadDifferences(nearestCache, connection);
+    }
+  }
+
   private void loadAllRevisions(DateRevision version, ClearCaseConnection connection) throws IOException {
     //noinspection ResultOfMethodCallIgnored
     myCacheFile.getParentFile().mkdirs();
@@ -91,6 +121,7 @@ public class CacheElement {
     try {
       connection.processAllVersions(version, new WriteVersionProcessor(outputStream), true, false);
       outputStream.close();
+      myOwner.cacheFileWritten(myCacheFile);
     } catch (Throwable e) {
       outputStream.close();
       FileUtil.delete(myCacheFile);
@@ -98,9 +129,61 @@ public class CacheElement {
 
   }
 
+  /**
+   * Creates the snapshot for the version of the latest snapshot made with the previous config spec: the subtrees
+   * not affected by the config spec change are copied, the affected ones are resolved again.
+   * @return the created snapshot or null if there is nothing to start from
+   */
+  @Nullable
+  private CacheElement loadFromPreviousConfigSpec() {
+    final CacheElement previousCache = myOwner.getPreviousConfigSpecCache(myVersion, myPath, myIncludeRule, myRoot);
+    if (previousCache == null) return null;
+    final CacheElement result = myOwner.getCache(previousCache.getVersion(), myPath, myIncludeRule, myRoot);
+    if (result == null) return null;
+
+    final Set<String> invalidPaths = myOwner.getInvalidPaths(myRoot);
+    LOG.debug("ClearCase cache " + result.myCacheFile.getPath() + " loading from previous config spec snapshot " + previousCache.myCacheFile.getPath());
+    try {
+      // a separate connection, the changes to ignore must be collected for the version of the previous snapshot
+      myParentSupport.withConnection(myRoot, myIncludeRule, null, new ClearCaseSupport.ConnectionProcessor() {
+        public void process(@NotNull final ClearCaseConnection connection) throws VcsException, IOException {
+          connection.collectChangesToIgnore(previousCache.getVersion());
+          result.writeReresolved(previousCache.getCacheFile(), invalidPaths, connection);
+        }
+      });
+    } catch (VcsException e) {
+      LOG.debug("ClearCase cache " + result.myCacheFile.getPath() + " cannot be loaded from previous config spec snapshot: " + e.getLocalizedMessage());
+      return null;
+    } catch (IOException e) {
+      LOG.debug("ClearCase cache " + result.myCacheFile.getPath() + " cannot be loaded from previous config spec snapshot: " + e.getLocalizedMessage());
+      return null;
+    }
+    return result.hasData() ? result : null;
+  }
+
+  private void writeReresolved(final File previousCacheFile, final Set<String> invalidPaths, final ClearCaseConnection connection) throws IOException {
+    //noinspection ResultOfMethodCallIgnored
+    myCacheFile.getParentFile().mkdirs();
+    final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(myCacheFile));
+    try {
+      new CacheProcessor(new ReresolvingVersionProcessor(invalidPaths, new WriteVersionProcessor(outputStream), connection), connection, previousCacheFile)
+        .processAllRevisions(true);
+      outputStream.close();
+      myOwner.cacheFileWritten(myCacheFile);
+    } catch (Throwable e) {
+      outputStream.close();
+      FileUtil.delete(myCacheFile);
+    }
+  }
+
   private void loadDifferences(final CacheElement nearestCache, final ClearCaseConnection connection) throws IOException, VcsException {
     final List<ChangedElementInfo> changedElements = loadChanges(nearestCache);
-    
+    if (changedElements.isEmpty()) {
+      LOG.debug("ClearCase cache " + myCacheFile.getPath() + " has no differences, aliasing " + nearestCache.getCacheFile().getPath());
+      myOwner.registerAlias(myCacheFile, nearestCache.getCacheFile());
+      return;
+    }
+
     final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(myCacheFile));
     final WriteVersionProcessor writeProcessor = new WriteVersionProcessor(outputStream);
     try {
@@ -109,10 +192,19 @@ public class CacheElement {
     } finally {
       outputStream.close();
     }
+    myOwner.cacheFileWritten(myCacheFile);
   }
 
+  /**
+   * @return the file which holds the snapshot data, for aliased snapshots it is the file of the aliased one
+   */
   public File getCacheFile() {
-    return myCacheFile;
+    final File aliasTarget = myOwner.resolveAlias(myCacheFile);
+    return aliasTarget != null ? aliasTarget : myCacheFile;
+  }
+
+  private boolean hasData() {
+    return myCacheFile.exists() || myOwner.resolveAlias(myCacheFile) != null;
   }
 
   private List<ChangedElementInfo> loadChanges(final CacheElement nearestCache) throws IOException, VcsException {
@@ -156,8 +248,11 @@ public class CacheElement {
 
   private void processAllVersionsInternal(final VersionProcessor versionProcessor,
                                           final boolean processRoot,
-                                          final ClearCaseConnection connection) throws VcsException, IOException {
-    new CacheProcessor(versionProcessor, connection, myCacheFile).processAllRevisions(processRoot);
+                                          final ClearCaseConnection connection,
+                                          final String slicePath) throws VcsException, IOException {
+    final File cacheFile = getCacheFile();
+    myOwner.cacheFileUsed(cacheFile);
+    new CacheProcessor(versionProcessor, connection, cacheFile, slicePath).processAllRevisions(processRoot);
   }
 
 }
@@ -21,25 +21,35 @@ import java.util.Stack;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.CCParseUtil;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.VersionProcessor;
+import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.TCStreamUtil;
 import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
 
 public class CacheProcessor {
   private final VersionProcessor myVersionProcessor;
   private final ClearCaseConnection myConnection;
   private final File myCacheFile;
+  private final String[] mySliceNames;
 
   public CacheProcessor(final VersionProcessor versionProcessor, final ClearCaseConnection connection, final File cacheFile) {
+    this(versionProcessor, connection, cacheFile, "");
+  }
 
+  /**
+   * @param slicePath path of the subtree to process relative to the snapshot root, empty string means the whole snapshot
+   */
+  public CacheProcessor(final VersionProcessor versionProcessor, final ClearCaseConnection connection, final File cacheFile, @NotNull final String slicePath) {
     myVersionProcessor = versionProcessor;
     myConnection = connection;
     myCacheFile = cacheFile;
+    mySliceNames = slicePath.length() == 0 ? new String[0] : StringUtil.split(slicePath, File.separator).toArray(new String[0]);
   }
 
   public void processAllRevisions(final boolean processRoot) throws IOException, VcsException {
     final Stack<ReadCacheItem> readDirs = new Stack<ReadCacheItem>();
+    final int sliceDepth = mySliceNames.length;
     DataInputStream input = new DataInputStream(new FileInputStream(myCacheFile));
-    int index = 0;
     try {
       while (true) {
         byte type;
@@ -66,64 +76,65 @@ public class CacheProcessor {
             
             readDirs.push(new ReadCacheItem(name, version));
 
-
-
-            myVersionProcessor.processFile(createFullPath(readDirs, myConnection), createRelPath(readDirs), createIOPath(readDirs, myConnection), version, myConnection,
-                                           text, executable);
+            if (readDirs.size() - 1 > sliceDepth && isInsideSlice(readDirs)) {
+              myVersionProcessor.processFile(createFullPath(readDirs, myConnection), createRelPath(readDirs), createIOPath(readDirs, myConnection), version, myConnection,
+                                             text, executable);
+            }
             readDirs.pop();
           }
           else if (type == CacheElement.DIR_OPEN_TYPE) {
             String name = TCStreamUtil.readString(input);
             String version = TCStreamUtil.readString(input);
             readDirs.push(new ReadCacheItem(name, version));
-            if (index > 0 || processRoot) {
+            final int depth = readDirs.size() - 1;
+            if ((depth > sliceDepth || depth == sliceDepth && processRoot) && isInsideSlice(readDirs)) {
               myVersionProcessor.processDirectory(createFullPath(readDirs, myConnection), createRelPath(readDirs), createIOPath(readDirs, myConnection), version, myConnection);
             }
           }
           else if (type == CacheElement.DIR_CLOSE_TYPE){ 
+            if (readDirs.size() - 1 >= sliceDepth && isInsideSlice(readDirs)) {
+              myVersionProcessor.finishProcessingDirectory();
+            }
             readDirs.pop();
-            myVersionProcessor.finishProcessingDirectory();
           }
           else {
             throw new IOException("Unexpected type "+ type);
           }
-        index++;
       }
     } finally {
       input.close();
     }
     
   }
-  
+
+  private boolean isInsideSlice(final Stack<ReadCacheItem> readDirs) {
+    for (int i = 0; i < mySliceNames.length; i++) {
+      if (i + 1 >= readDirs.size() || !mySliceNames[i].equals(readDirs.get(i + 1).getName())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private String createIOPath(final Stack<ReadCacheItem> readDirs, final ClearCaseConnection connection) {
     StringBuilder result = new StringBuilder();
     if (connection != null) {
       result.append(connection.getViewWholePath());
     }
-    for (ReadCacheItem readDir : readDirs) {
-      String name = readDir.getName();
-      if (!isRoot(name)) {
-        result.append(File.separatorChar);
-        result.append(name);
-      }
+    for (int i = mySliceNames.length + 1; i < readDirs.size(); i++) {
+      result.append(File.separatorChar);
+      result.append(readDirs.get(i).getName());
     }
     return result.toString();    
   }
 
-  private boolean isRoot(final String name) {
-    return "".equals(name);
-  }
-
   private String createRelPath(final Stack<ReadCacheItem> readDirs) {
     StringBuilder result = new StringBuilder();
-    for (ReadCacheItem readDir : readDirs) {
+    for (int i = mySliceNames.length + 1; i < readDirs.size(); i++) {
       if (result.length() > 0) {
         result.append(File.separatorChar);
       }
-      String name = readDir.getName();
-      if (!isRoot(name)) {
-        result.append(name);
-      }
+      result.append(readDirs.get(i).getName());
     }
     return result.toString();
     
@@ -134,17 +145,14 @@ public class CacheProcessor {
     if (connection != null) {
       result.append(connection.getViewWholePath());
     }
-    for (ReadCacheItem readDir : readDirs) {
-      if (!isRoot(readDir.getName())) {
+    for (int i = mySliceNames.length; i < readDirs.size(); i++) {
+      final ReadCacheItem readDir = readDirs.get(i);
+      if (i > mySliceNames.length) {
         result.append(File.separatorChar);
         result.append(readDir.getName());
-        result.append(CCParseUtil.CC_VERSION_SEPARATOR);
-        result.append(readDir.getVersion());
-      }
-      else {
-        result.append(CCParseUtil.CC_VERSION_SEPARATOR);
-        result.append(readDir.getVersion());        
       }
+      result.append(CCParseUtil.CC_VERSION_SEPARATOR);
+      result.append(readDir.getVersion());
     }
     return result.toString();
   }
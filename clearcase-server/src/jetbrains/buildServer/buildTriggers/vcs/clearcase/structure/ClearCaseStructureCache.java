@@ -16,35 +16,65 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
-import java.io.File;
-import java.util.Date;
-import java.util.List;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import jetbrains.buildServer.BuildAgent;
 import jetbrains.buildServer.BuildType;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseSupport;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.DateRevision;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.Revision;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpec;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecDiffUtil;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.cleanup.AfterBuildsCleanupExtension;
 import jetbrains.buildServer.serverSide.cleanup.CleanupProcessState;
+import jetbrains.buildServer.util.Dates;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.Hash;
 import jetbrains.buildServer.vcs.IncludeRule;
 import jetbrains.buildServer.vcs.VcsRoot;
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 
 public class ClearCaseStructureCache {
+  private static final Logger LOG = Logger.getLogger(ClearCaseStructureCache.class);
+
+  private static final String MAX_SIZE_PROPERTY = "clearcase.cache.max.size.mb";
+  // applies to a snapshots directory, roots sharing one directory share the quota
+  private static final String MAX_ROOT_SIZE_PROPERTY = "clearcase.cache.root.max.size.mb";
+  private static final String MAX_AGE_PROPERTY = "clearcase.cache.max.age.hours";
+  private static final int DEFAULT_MAX_SIZE_MB = 4096;
+  private static final int DEFAULT_MAX_ROOT_SIZE_MB = 1024;
+  private static final int DEFAULT_MAX_AGE_HOURS = 7 * 24;
+  private static final String SHARED_DIR_PREFIX = "view-";
+  private static final String BINDINGS_FILE = "snapshots";
+  private static final String SHARED_DIR_BINDING = "shared";
+  private static final String PREVIOUS_DIR_BINDING = "previous";
+  private static final String PREVIOUS_ROOT_PATH_BINDING = "previousRootPath";
+  private static final String INVALID_PATHS_BINDING = "invalidPaths";
+
   private final @NotNull File myBaseDir;
   private final @NotNull ClearCaseSupport myParentSupport;
+  private final @NotNull Map<File, File> myAliases = new ConcurrentHashMap<File, File>();
+  private final @NotNull StructureCacheIndex myIndex;
+  // the bindings are guarded by mySharedDirUsers and saved in the root cache dirs, so they survive the server restart
+  private final @NotNull Map<Long, String> myRoot2SharedDir = new HashMap<Long, String>();
+  private final @NotNull Map<String, Set<Long>> mySharedDirUsers = new HashMap<String, Set<Long>>();
+  private final @NotNull Set<Long> myBoundRoots = new HashSet<Long>();
+  private boolean myBindingsLoaded;
+  private final @NotNull Map<Long, PreviousSnapshots> myPreviousSnapshots = new HashMap<Long, PreviousSnapshots>();
 
   public ClearCaseStructureCache(final @NotNull File baseDir, final @NotNull ClearCaseSupport support) {
     myBaseDir = baseDir;
     myParentSupport = support;
+    myIndex = new StructureCacheIndex(baseDir);
   }
 
   public void register(final @NotNull SBuildServer server, final @NotNull EventDispatcher<BuildServerListener> dispatcher) {
@@ -98,9 +128,54 @@ public class ClearCaseStructureCache {
         }
       }
     }
+    for (File aliasFile : myAliases.keySet()) {
+      if (!baseDir.equals(aliasFile.getParentFile())) continue;
+      try {
+        long currentCacheTime = Long.parseLong(aliasFile.getName());
+        if (currentCacheTime <= version.getDate().getTime()) {
+          if ((result == null || result.getVersion().getDate().getTime() < currentCacheTime) && resolveAlias(aliasFile) != null) {
+            result = getCache(Revision.fromDate(new Date(currentCacheTime)), path, includeRule, vcsRoot);
+          }
+        }
+      } catch (NumberFormatException e) {
+        //ignore
+      }
+    }
     return result;
   }
 
+  /**
+   * Records that the snapshot for the given cache file is identical to an already written one,
+   * so it can be served from the target file without copying the whole tree.
+   */
+  public void registerAlias(final @NotNull File aliasFile, final @NotNull File targetFile) {
+    final File resolvedTarget = resolveAlias(targetFile);
+    myAliases.put(aliasFile, resolvedTarget == null ? targetFile : resolvedTarget);
+  }
+
+  /**
+   * @return the file which holds the data of the aliased snapshot or null if the file is not an alias
+   * or its target has already been removed
+   */
+  @Nullable
+  public File resolveAlias(final @NotNull File aliasFile) {
+    final File target = myAliases.get(aliasFile);
+    if (target == null) return null;
+    if (!target.isFile()) {
+      myAliases.remove(aliasFile);
+      return null;
+    }
+    return target;
+  }
+
+  private void removeAliases(final @NotNull File dir) {
+    for (Iterator<File> it = myAliases.keySet().iterator(); it.hasNext();) {
+      if (FileUtil.isAncestor(dir, it.next(), false)) {
+        it.remove();
+      }
+    }
+  }
+
   @Nullable
   public CacheElement getCache(@NotNull final DateRevision version, @NotNull final String path, @NotNull final IncludeRule includeRule, @NotNull final VcsRoot root) {
     final File cacheFile = createCacheFile(version.getDate(), path, root);
@@ -108,6 +183,16 @@ public class ClearCaseStructureCache {
     return new CacheElement(version, cacheFile, this, path, includeRule, myParentSupport, root);
   }
 
+  /**
+   * @return the file of the snapshot made for the path exactly for the given version, null if there is no such snapshot
+   */
+  @Nullable
+  public File getExistingSnapshot(final @NotNull DateRevision version, final @NotNull String path, final @NotNull VcsRoot root) {
+    final File cacheFile = createCacheFile(version.getDate(), path, root);
+    if (cacheFile == null) return null;
+    return cacheFile.isFile() ? cacheFile : resolveAlias(cacheFile);
+  }
+
   @Nullable
   private File createCacheFile(final @NotNull Date version, final @NotNull String path, final @NotNull VcsRoot root) {
     return new File(createCacheBaseDir(path, root), String.valueOf(version.getTime()));
@@ -115,72 +200,389 @@ public class ClearCaseStructureCache {
 
   @Nullable
   private File createCacheBaseDir(final @NotNull String path, final @NotNull VcsRoot vcsRoot) {
-    return new File(getCacheDir(vcsRoot), String.valueOf(Hash.calc(path)));
+    return new File(getSnapshotsDir(vcsRoot), String.valueOf(Hash.calc(path)));
   }
 
   public void cleanup() {
-    doCleanup(true);
+    evict(null);
   }
 
+  /**
+   * Evicts the snapshots the root uses, the total cache size is checked by the general cleanup only.
+   */
   public void cleanup(final @NotNull VcsRoot root) {
-    final File cacheDir = getCacheDir(root);
-    if (cacheDir == null) return;
-    cleanupFolder(cacheDir, true);
+    evict(getSnapshotsDir(root));
+  }
+
+  void cacheFileWritten(final @NotNull File cacheFile) {
+    myIndex.fileWritten(cacheFile);
   }
 
-  private void doCleanup(final boolean keepLastCache) {
-    File[] folders = myBaseDir.listFiles();
-    if (folders != null) {
-      for (File folder : folders) {
-        if (!folder.isDirectory()) {
-          FileUtil.delete(folder);
+  void cacheFileUsed(final @NotNull File cacheFile) {
+    myIndex.fileUsed(cacheFile);
+  }
+
+  private void evict(final @Nullable File scope) {
+    final List<File> evicted = myIndex.evict(scope,
+                                             getSizeLimit(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE_MB),
+                                             getSizeLimit(MAX_ROOT_SIZE_PROPERTY, DEFAULT_MAX_ROOT_SIZE_MB),
+                                             TeamCityProperties.getInteger(MAX_AGE_PROPERTY, DEFAULT_MAX_AGE_HOURS) * Dates.ONE_HOUR);
+    for (File file : evicted) {
+      FileUtil.delete(file);
+      if (file.exists()) {
+        LOG.debug("ClearCase cache " + file.getPath() + " cannot be deleted now, it will be evicted later");
+        continue;
+      }
+      myIndex.fileDeleted(file);
+      LOG.debug("ClearCase cache " + file.getPath() + " evicted");
+    }
+    if (scope == null) {
+      reclaimSharedDirs();
+    }
+  }
+
+  /**
+   * Deletes the shared snapshots dirs no root is bound to any more. The bindings loaded from the previous server runs
+   * are forgotten once all their snapshots are evicted and the root did not bind to the dir again.
+   */
+  private void reclaimSharedDirs() {
+    final File[] dirs = myBaseDir.listFiles();
+    if (dirs == null) return;
+    synchronized (mySharedDirUsers) {
+      ensureBindingsLoaded();
+      for (Long rootId : new ArrayList<Long>(myRoot2SharedDir.keySet())) {
+        if (myBoundRoots.contains(rootId) || hasSnapshots(new File(myBaseDir, myRoot2SharedDir.get(rootId)))) continue;
+        release(rootId);
+        saveBindings(rootId);
+      }
+      for (Long rootId : new ArrayList<Long>(myPreviousSnapshots.keySet())) {
+        if (hasSnapshots(myPreviousSnapshots.get(rootId).myDir)) continue;
+        LOG.debug("ClearCase cache " + myPreviousSnapshots.get(rootId).myDir.getPath() + " has no previous config spec snapshots left");
+        myPreviousSnapshots.remove(rootId);
+        saveBindings(rootId);
+      }
+      for (File dir : dirs) {
+        if (dir.isDirectory() && dir.getName().startsWith(SHARED_DIR_PREFIX) && !isSharedDirUsed(dir.getName())) {
+          LOG.debug("ClearCase cache " + dir.getPath() + " is not used by any root, deleting");
+          deleteSharedDir(dir.getName());
         }
-        cleanupFolder(folder, keepLastCache);
       }
     }
   }
 
-  private void cleanupFolder(final @NotNull File dir, final boolean keepLastCache) {
-    File[] subDirs = dir.listFiles();
-    if (subDirs != null) {
-      for (File subDir : subDirs) {
-        cleanupSubFolder(subDir, keepLastCache);
+  private static long getSizeLimit(final @NotNull String propertyName, final int defaultValueMb) {
+    return TeamCityProperties.getInteger(propertyName, defaultValueMb) * 1024L * 1024L;
+  }
+
+  public void clearCaches(final @NotNull VcsRoot root) {
+    final File dir = getCacheDir(root);
+    if (dir != null) {
+      deleteSnapshots(dir);
+    }
+    synchronized (mySharedDirUsers) {
+      ensureBindingsLoaded();
+      final String releasedDir = release(root.getId());
+      saveBindings(root.getId());
+      if (releasedDir != null && !isSharedDirUsed(releasedDir)) {
+        deleteSharedDir(releasedDir);
       }
     }
   }
 
-  private void cleanupSubFolder(final @NotNull File subDir, final boolean keepLastCache) {
-    File[] versCaches = subDir.listFiles();
-    if (versCaches == null) return;
-    long lastCacheDate = -1;
-    for (File versCach : versCaches) {
+  /**
+   * Must be called under the bindings lock, so no root binds to the dir while it is being deleted.
+   */
+  private void deleteSharedDir(final @NotNull String sharedDir) {
+    final File dir = new File(myBaseDir, sharedDir);
+    deleteSnapshots(dir);
+    FileUtil.delete(dir);
+  }
+
+  private void deleteSnapshots(final @NotNull File dir) {
+    final File[] subDirs = dir.listFiles();
+    if (subDirs == null) return;
+    for (File subDir : subDirs) {
+      if (subDir.isDirectory()) {
+        FileUtil.delete(subDir);
+      }
+    }
+    myIndex.removeUnder(dir);
+    removeAliases(dir);
+  }
+
+  /**
+   * Called when the config spec of the root's view has changed. If the change affects only some subtrees of the root,
+   * the snapshots made with the previous config spec are kept to seed the new ones, otherwise they are dropped.
+   */
+  public void configSpecChanged(final @NotNull VcsRoot root,
+                                final @NotNull String rootPath,
+                                final @NotNull String viewRoot,
+                                final @Nullable ConfigSpec oldConfigSpec,
+                                final @NotNull ConfigSpec newConfigSpec) {
+    final Set<String> affectedPaths = oldConfigSpec == null ? null : ConfigSpecDiffUtil.getAffectedPaths(oldConfigSpec, newConfigSpec);
+    final Set<String> invalidPaths = affectedPaths == null ? null : getPathsUnderRoot(affectedPaths, viewRoot, rootPath);
+    if (invalidPaths == null) {
+      synchronized (mySharedDirUsers) {
+        ensureBindingsLoaded();
+        dropPreviousSnapshots(root.getId());
+        clearCaches(root);
+      }
+      return;
+    }
+
+    LOG.debug("ClearCase config spec changed for " + rootPath + ", invalid paths: " + invalidPaths);
+    synchronized (mySharedDirUsers) {
+      final File previousDir = getSnapshotsDir(root);
+      release(root.getId());
+      deleteIfUnused(myPreviousSnapshots.put(root.getId(), new PreviousSnapshots(previousDir, rootPath, invalidPaths)));
+      saveBindings(root.getId());
+    }
+  }
+
+  /**
+   * @return paths relative to the root path, null if the root itself is affected
+   */
+  @Nullable
+  private static Set<String> getPathsUnderRoot(final @NotNull Set<String> viewRelativePaths, final @NotNull String viewRoot, final @NotNull String rootPath) {
+    final File rootFile = new File(rootPath);
+    final Set<String> result = new TreeSet<String>();
+    for (String path : viewRelativePaths) {
+      final File file = new File(viewRoot, path);
+      if (FileUtil.isAncestor(file, rootFile, false)) return null;
+      if (FileUtil.isAncestor(rootFile, file, true)) {
+        result.add(FileUtil.getRelativePath(rootFile.getAbsolutePath(), file.getAbsolutePath(), File.separatorChar));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the latest snapshot made for the path with the previous config spec not after the given version
+   */
+  @Nullable
+  CacheElement getPreviousConfigSpecCache(final @NotNull DateRevision version, final @NotNull String path, final @NotNull IncludeRule includeRule, final @NotNull VcsRoot root) {
+    final PreviousSnapshots previous = getPreviousSnapshots(root.getId());
+    if (previous == null || !previous.myRootPath.equals(path)) return null;
+    final File[] cacheFiles = new File(previous.myDir, String.valueOf(Hash.calc(path))).listFiles();
+    if (cacheFiles == null) return null;
+    File result = null;
+    long resultTime = -1;
+    for (File cacheFile : cacheFiles) {
       try {
-        long currentCacheDate = Long.parseLong(versCach.getName());
-        if (currentCacheDate > lastCacheDate) {
-          lastCacheDate = currentCacheDate;
+        final long cacheTime = Long.parseLong(cacheFile.getName());
+        if (cacheTime <= version.getDate().getTime() && cacheTime > resultTime) {
+          result = cacheFile;
+          resultTime = cacheTime;
         }
       } catch (NumberFormatException e) {
         //ignore
       }
     }
+    return result == null ? null : new CacheElement(Revision.fromDate(new Date(resultTime)), result, this, path, includeRule, myParentSupport, root);
+  }
+
+  /**
+   * @return the file of the snapshot made for the path with the previous config spec exactly for the given version,
+   * null if there is no such snapshot
+   */
+  @Nullable
+  public File getPreviousConfigSpecSnapshot(final @NotNull DateRevision version, final @NotNull String path, final @NotNull VcsRoot root) {
+    final PreviousSnapshots previous = getPreviousSnapshots(root.getId());
+    if (previous == null || !previous.myRootPath.equals(path)) return null;
+    final File cacheFile = new File(new File(previous.myDir, String.valueOf(Hash.calc(path))), String.valueOf(version.getDate().getTime()));
+    return cacheFile.isFile() ? cacheFile : resolveAlias(cacheFile);
+  }
+
+  @NotNull
+  Set<String> getInvalidPaths(final @NotNull VcsRoot root) {
+    final PreviousSnapshots previous = getPreviousSnapshots(root.getId());
+    return previous == null ? Collections.<String>emptySet() : previous.myInvalidPaths;
+  }
 
-    String keepFileName = String.valueOf(lastCacheDate);
+  @Nullable
+  private PreviousSnapshots getPreviousSnapshots(final long rootId) {
+    synchronized (mySharedDirUsers) {
+      ensureBindingsLoaded();
+      return myPreviousSnapshots.get(rootId);
+    }
+  }
+
+  /**
+   * Forgets the snapshots of the previous config spec of the root, they are deleted unless some other root still uses them.
+   * They are kept while the config spec stays the same, so all the new snapshots can be seeded from them, until evicted by the cleanup.
+   * Must be called under the bindings lock.
+   */
+  private void dropPreviousSnapshots(final long rootId) {
+    deleteIfUnused(myPreviousSnapshots.remove(rootId));
+  }
+
+  private void deleteIfUnused(final @Nullable PreviousSnapshots previous) {
+    if (previous != null && !isSharedDirUsed(previous.myDir.getName())) {
+      deleteSnapshots(previous.myDir);
+    }
+  }
 
-    for (File versCach : versCaches) {
-      if (!keepLastCache || !versCach.getName().equals(keepFileName)) {
-        FileUtil.delete(versCach);
+  /**
+   * Binds the root to the snapshots shared by all roots which use the same view with the same config spec,
+   * so the view structure is walked and stored once for all of them.
+   * @param configSpecHash {@link jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecParseUtil#getNormalizedHash normalized hash} of the config spec
+   * @param labelsFingerprint changes when a label the config spec refers to is moved, null if the config spec does not refer to labels
+   */
+  public void bindToSharedSnapshots(final @NotNull VcsRoot root, final @NotNull String viewRoot, final @NotNull String configSpecHash,
+                                    final @Nullable String labelsFingerprint) {
+    final String sharedDir = SHARED_DIR_PREFIX + Hash.calc(viewRoot + ":" + configSpecHash + (labelsFingerprint == null ? "" : ":" + labelsFingerprint));
+    synchronized (mySharedDirUsers) {
+      ensureBindingsLoaded();
+      myBoundRoots.add(root.getId());
+      if (sharedDir.equals(myRoot2SharedDir.get(root.getId()))) return;
+      final String releasedDir = release(root.getId());
+      addUser(root.getId(), sharedDir);
+      saveBindings(root.getId());
+      if (releasedDir != null && !isSharedDirUsed(releasedDir)) {
+        deleteSharedDir(releasedDir);
       }
     }
-    
-    if (!keepLastCache) {
-      FileUtil.delete(subDir);
+  }
+
+  private void addUser(final long rootId, final @NotNull String sharedDir) {
+    myRoot2SharedDir.put(rootId, sharedDir);
+    Set<Long> users = mySharedDirUsers.get(sharedDir);
+    if (users == null) {
+      users = new HashSet<Long>();
+      mySharedDirUsers.put(sharedDir, users);
     }
+    users.add(rootId);
   }
 
-  public void clearCaches(final @NotNull VcsRoot root) {
-    final File dir = getCacheDir(root);
-    if (dir != null) {
-      cleanupFolder(dir, false);
+  /**
+   * @return the shared snapshots dir name if the root was its last user
+   */
+  @Nullable
+  private String release(final long rootId) {
+    synchronized (mySharedDirUsers) {
+      final String sharedDir = myRoot2SharedDir.remove(rootId);
+      if (sharedDir == null) return null;
+      final Set<Long> users = mySharedDirUsers.get(sharedDir);
+      if (users != null) {
+        users.remove(rootId);
+        if (!users.isEmpty()) return null;
+        mySharedDirUsers.remove(sharedDir);
+      }
+      return sharedDir;
+    }
+  }
+
+  private static boolean hasSnapshots(final @NotNull File dir) {
+    final File[] subDirs = dir.listFiles();
+    if (subDirs == null) return false;
+    for (File subDir : subDirs) {
+      final String[] snapshots = subDir.list();
+      if (snapshots != null && snapshots.length > 0) return true;
+    }
+    return false;
+  }
+
+  private boolean isSharedDirUsed(final @NotNull String sharedDir) {
+    if (mySharedDirUsers.containsKey(sharedDir)) return true;
+    for (PreviousSnapshots previous : myPreviousSnapshots.values()) {
+      if (previous.myDir.getName().equals(sharedDir)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Reads the bindings saved by the previous server runs, so the shared snapshots of the roots which are not
+   * connected yet are not taken for unused. Must be called under the bindings lock.
+   */
+  private void ensureBindingsLoaded() {
+    if (myBindingsLoaded) return;
+    myBindingsLoaded = true;
+    final File[] rootDirs = myBaseDir.listFiles();
+    if (rootDirs == null) return;
+    for (File rootDir : rootDirs) {
+      final long rootId;
+      try {
+        rootId = Long.parseLong(rootDir.getName());
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      final File bindingsFile = new File(rootDir, BINDINGS_FILE);
+      if (!bindingsFile.isFile()) continue;
+      final Properties bindings = new Properties();
+      InputStream input = null;
+      try {
+        input = new FileInputStream(bindingsFile);
+        bindings.load(input);
+      }
+      catch (IOException e) {
+        LOG.debug("Cannot load ClearCase cache bindings " + bindingsFile.getPath() + ": " + e.getLocalizedMessage());
+        continue;
+      }
+      finally {
+        FileUtil.close(input);
+      }
+      final String sharedDir = bindings.getProperty(SHARED_DIR_BINDING);
+      if (sharedDir != null) {
+        addUser(rootId, sharedDir);
+      }
+      final String previousDir = bindings.getProperty(PREVIOUS_DIR_BINDING);
+      final String previousRootPath = bindings.getProperty(PREVIOUS_ROOT_PATH_BINDING);
+      if (previousDir != null && previousRootPath != null) {
+        final Set<String> invalidPaths = new TreeSet<String>();
+        for (String invalidPath : bindings.getProperty(INVALID_PATHS_BINDING, "").split("\n")) {
+          if (invalidPath.length() > 0) {
+            invalidPaths.add(invalidPath);
+          }
+        }
+        myPreviousSnapshots.put(rootId, new PreviousSnapshots(new File(myBaseDir, previousDir), previousRootPath, invalidPaths));
+      }
+    }
+  }
+
+  /**
+   * Must be called under the bindings lock.
+   */
+  private void saveBindings(final long rootId) {
+    final File bindingsFile = new File(new File(myBaseDir, String.valueOf(rootId)), BINDINGS_FILE);
+    final Properties bindings = new Properties();
+    final String sharedDir = myRoot2SharedDir.get(rootId);
+    if (sharedDir != null) {
+      bindings.setProperty(SHARED_DIR_BINDING, sharedDir);
+    }
+    final PreviousSnapshots previous = myPreviousSnapshots.get(rootId);
+    if (previous != null) {
+      final StringBuilder invalidPaths = new StringBuilder();
+      for (String invalidPath : previous.myInvalidPaths) {
+        invalidPaths.append(invalidPath).append("\n");
+      }
+      bindings.setProperty(PREVIOUS_DIR_BINDING, previous.myDir.getName());
+      bindings.setProperty(PREVIOUS_ROOT_PATH_BINDING, previous.myRootPath);
+      bindings.setProperty(INVALID_PATHS_BINDING, invalidPaths.toString());
+    }
+    if (bindings.isEmpty()) {
+      FileUtil.delete(bindingsFile);
+      return;
+    }
+    OutputStream output = null;
+    try {
+      FileUtil.createParentDirs(bindingsFile);
+      output = new FileOutputStream(bindingsFile);
+      bindings.store(output, null);
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot save ClearCase cache bindings " + bindingsFile.getPath() + ", the shared snapshots may be deleted on the server restart: " + e.getLocalizedMessage());
+    }
+    finally {
+      FileUtil.close(output);
+    }
+  }
+
+  @NotNull
+  private File getSnapshotsDir(final @NotNull VcsRoot root) {
+    synchronized (mySharedDirUsers) {
+      ensureBindingsLoaded();
+      final String sharedDir = myRoot2SharedDir.get(root.getId());
+      return sharedDir != null ? new File(myBaseDir, sharedDir) : new File(myBaseDir, String.valueOf(root.getId()));
     }
   }
 
@@ -198,6 +600,18 @@ public class ClearCaseStructureCache {
     return cacheDir;
   }
 
+  private static class PreviousSnapshots {
+    private final File myDir;
+    private final String myRootPath;
+    private final Set<String> myInvalidPaths;
+
+    private PreviousSnapshots(final @NotNull File dir, final @NotNull String rootPath, final @NotNull Set<String> invalidPaths) {
+      myDir = dir;
+      myRootPath = rootPath;
+      myInvalidPaths = invalidPaths;
+    }
+  }
+
   private class ClearcaseCacheGeneralDataCleaner implements AfterBuildsCleanupExtension {
     @Override
     public void afterCleanup(@NotNull final CleanupProcessState cleanupState) {
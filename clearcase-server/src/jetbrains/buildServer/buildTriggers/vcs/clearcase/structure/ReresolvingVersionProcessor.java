@@ -0,0 +1,177 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.File;
+import java.util.*;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.*;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Copies a snapshot made with the previous config spec, the elements under the invalid paths are resolved again
+ * with the connection (which must use the current config spec) instead of being copied. The re-resolved children
+ * are merged into the copied ones at their positions in the current listing of the directory, so the snapshot
+ * keeps the order a full walk would produce.
+ */
+class ReresolvingVersionProcessor implements VersionProcessor {
+  private final Set<String> myInvalidPaths;
+  private final WriteVersionProcessor myWriteProcessor;
+  private final ClearCaseConnection myConnection;
+  private final Stack<Dir> myDirs = new Stack<Dir>();
+  private int mySkippedDepth = 0;
+
+  public ReresolvingVersionProcessor(@NotNull final Set<String> invalidPaths,
+                                     @NotNull final WriteVersionProcessor writeProcessor,
+                                     @NotNull final ClearCaseConnection connection) {
+    myInvalidPaths = invalidPaths;
+    myWriteProcessor = writeProcessor;
+    myConnection = connection;
+  }
+
+  public void processFile(final String fileFullPath,
+                          final String relPath,
+                          final String pname,
+                          final String version,
+                          final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) throws VcsException {
+    if (mySkippedDepth > 0) return;
+    if (!myDirs.isEmpty() && myDirs.peek().processChild(relPath)) return;
+    myWriteProcessor.writeFile(version, new File(relPath).getName(), text, executable);
+  }
+
+  public void processDirectory(final String fileFullPath,
+                               final String relPath,
+                               final String pname,
+                               final String version,
+                               final ClearCaseConnection clearCaseConnection) throws VcsException {
+    if (mySkippedDepth > 0) {
+      mySkippedDepth++;
+      return;
+    }
+    if (!myDirs.isEmpty() && myDirs.peek().processChild(relPath)) {
+      mySkippedDepth = 1;
+      return;
+    }
+    myWriteProcessor.writeDirOpen(version, new File(relPath).getName());
+    myDirs.push(new Dir(relPath, hasInvalidDescendants(relPath) ? CCParseUtil.readDirectoryVersionContent(myConnection, fileFullPath) : null));
+  }
+
+  public void finishProcessingDirectory() throws VcsException {
+    if (mySkippedDepth > 0) {
+      mySkippedDepth--;
+      return;
+    }
+    myDirs.pop().finish();
+    myWriteProcessor.writeDirClose();
+  }
+
+  private boolean hasInvalidDescendants(@NotNull final String relPath) {
+    final String prefix = getPrefix(relPath);
+    for (String invalidPath : myInvalidPaths) {
+      if (invalidPath.startsWith(prefix) && invalidPath.length() > prefix.length()) return true;
+    }
+    return false;
+  }
+
+  @NotNull
+  private static String getPrefix(@NotNull final String dirRelPath) {
+    return dirRelPath.length() == 0 ? "" : dirRelPath + File.separator;
+  }
+
+  private void writeChild(@NotNull final DirectoryChildElement child, @NotNull final String name, @NotNull final String relPath) throws VcsException {
+    if (child.getType() == DirectoryChildElement.Type.FILE) {
+      final ClearCaseFileAttr fileAttr = myConnection.loadFileAttr(child.getPathWithoutVersion() + CCParseUtil.CC_VERSION_SEPARATOR);
+      myWriteProcessor.writeFile(child.getStringVersion(), name, fileAttr.isIsText(), fileAttr.isIsExecutable());
+    }
+    else {
+      myWriteProcessor.writeDirOpen(child.getStringVersion(), name);
+      try {
+        myConnection.processAllVersions(CCPathElement.removeUnneededDots(child.getFullPath()), relPath, myWriteProcessor);
+      } finally {
+        myWriteProcessor.writeDirClose();
+      }
+    }
+  }
+
+  /**
+   * A copied directory, for the ones with invalid descendants holds the current listing and how far it was merged.
+   */
+  private class Dir {
+    private final String myPrefix;
+    private final List<DirectoryChildElement> myChildren;
+    private final Map<String, Integer> myIndexes = new HashMap<String, Integer>();
+    private final boolean[] myCopied;
+    private final boolean[] myWritten;
+    private int myNext = 0;
+
+    private Dir(@NotNull final String relPath, @Nullable final List<DirectoryChildElement> children) {
+      myPrefix = getPrefix(relPath);
+      myChildren = children == null ? Collections.<DirectoryChildElement>emptyList() : children;
+      for (int i = 0; i < myChildren.size(); i++) {
+        myIndexes.put(CCParseUtil.getFileName(myChildren.get(i).getPath()), i);
+      }
+      myCopied = new boolean[myChildren.size()];
+      myWritten = new boolean[myChildren.size()];
+    }
+
+    /**
+     * Writes the re-resolved children preceding the child of the previous snapshot, and the child itself if it is invalid.
+     * @return true if the child of the previous snapshot must not be copied
+     */
+    private boolean processChild(@NotNull final String relPath) throws VcsException {
+      final boolean invalid = myInvalidPaths.contains(relPath);
+      final Integer index = myIndexes.get(new File(relPath).getName());
+      if (index == null) return invalid;
+      if (myWritten[index]) return true;
+      myCopied[index] = !invalid;
+      if (index >= myNext) {
+        writeOnRoute(myNext, index);
+        myNext = index + 1;
+      }
+      if (invalid) {
+        write(index);
+      }
+      return invalid;
+    }
+
+    private void finish() throws VcsException {
+      writeOnRoute(0, myChildren.size());
+    }
+
+    private void writeOnRoute(final int from, final int to) throws VcsException {
+      for (int i = from; i < to; i++) {
+        final String relPath = getRelPath(i);
+        if (myInvalidPaths.contains(relPath) || !myCopied[i] && hasInvalidDescendants(relPath)) {
+          write(i);
+        }
+      }
+    }
+
+    private void write(final int index) throws VcsException {
+      if (myWritten[index]) return;
+      myWritten[index] = true;
+      final DirectoryChildElement child = myChildren.get(index);
+      writeChild(child, CCParseUtil.getFileName(child.getPath()), getRelPath(index));
+    }
+
+    @NotNull
+    private String getRelPath(final int index) {
+      return myPrefix + CCParseUtil.getFileName(myChildren.get(index).getPath());
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.File;
+import java.util.*;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * In-memory index of the structure cache files: size and last usage time of every snapshot.
+ * The cache directory is scanned only once, all further bookkeeping is done on cache writes and reads.
+ */
+class StructureCacheIndex {
+  private final File myBaseDir;
+  private final Map<File, Entry> myEntries = new HashMap<File, Entry>();
+  private boolean myLoaded;
+
+  StructureCacheIndex(@NotNull final File baseDir) {
+    myBaseDir = baseDir;
+  }
+
+  synchronized void fileWritten(@NotNull final File cacheFile) {
+    ensureLoaded();
+    myEntries.put(cacheFile, new Entry(cacheFile.length(), System.currentTimeMillis()));
+  }
+
+  synchronized void fileUsed(@NotNull final File cacheFile) {
+    ensureLoaded();
+    final Entry entry = myEntries.get(cacheFile);
+    if (entry != null) {
+      entry.myLastUsed = System.currentTimeMillis();
+    }
+    else if (cacheFile.isFile()) {
+      myEntries.put(cacheFile, new Entry(cacheFile.length(), System.currentTimeMillis()));
+    }
+  }
+
+  /**
+   * Forgets the deleted files under the directory, the files still existing (e.g. held open by a reader) stay indexed.
+   */
+  synchronized void removeUnder(@NotNull final File dir) {
+    for (Iterator<File> it = myEntries.keySet().iterator(); it.hasNext();) {
+      final File file = it.next();
+      if (FileUtil.isAncestor(dir, file, false) && !file.exists()) {
+        it.remove();
+      }
+    }
+  }
+
+  synchronized void fileDeleted(@NotNull final File cacheFile) {
+    myEntries.remove(cacheFile);
+  }
+
+  /**
+   * Returns the files to be evicted, they stay in the index until {@link #fileDeleted} is called for them.
+   * Files which were not used for longer than maxAge go first, then the least recently used files of the snapshot
+   * directories exceeding maxDirSize, then the least recently used files at all until the total size fits into maxTotalSize.
+   * The latest snapshot of every path is never evicted for size, otherwise a big snapshot would be walked again on every poll.
+   * @param scope only the files under the directory are considered, the total size is not checked then; null for all files
+   */
+  @NotNull
+  synchronized List<File> evict(@Nullable final File scope, final long maxTotalSize, final long maxDirSize, final long maxAge) {
+    ensureLoaded();
+    final long now = System.currentTimeMillis();
+    final List<File> result = new ArrayList<File>();
+
+    final List<Map.Entry<File, Entry>> byUsage = new ArrayList<Map.Entry<File, Entry>>();
+    final Map<File, Long> latestVersions = new HashMap<File, Long>();
+    for (Map.Entry<File, Entry> entry : myEntries.entrySet()) {
+      if (scope != null && !FileUtil.isAncestor(scope, entry.getKey(), true)) continue;
+      byUsage.add(entry);
+      final File pathDir = entry.getKey().getParentFile();
+      final long version = getVersion(entry.getKey());
+      final Long latest = latestVersions.get(pathDir);
+      if (latest == null || latest < version) {
+        latestVersions.put(pathDir, version);
+      }
+    }
+    Collections.sort(byUsage, new Comparator<Map.Entry<File, Entry>>() {
+      public int compare(final Map.Entry<File, Entry> o1, final Map.Entry<File, Entry> o2) {
+        final long diff = o1.getValue().myLastUsed - o2.getValue().myLastUsed;
+        return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+      }
+    });
+
+    final Map<File, Long> dirSizes = new HashMap<File, Long>();
+    long totalSize = 0;
+    for (Map.Entry<File, Entry> entry : byUsage) {
+      final File dir = getSnapshotsDir(entry.getKey());
+      final Long dirSize = dirSizes.get(dir);
+      dirSizes.put(dir, (dirSize == null ? 0 : dirSize) + entry.getValue().mySize);
+      totalSize += entry.getValue().mySize;
+    }
+
+    for (Iterator<Map.Entry<File, Entry>> it = byUsage.iterator(); it.hasNext();) {
+      final Map.Entry<File, Entry> entry = it.next();
+      final File dir = getSnapshotsDir(entry.getKey());
+      final long size = entry.getValue().mySize;
+      final boolean latest = latestVersions.get(entry.getKey().getParentFile()) == getVersion(entry.getKey());
+      final boolean expired = maxAge > 0 && now - entry.getValue().myLastUsed > maxAge;
+      final boolean dirOverQuota = !latest && maxDirSize > 0 && dirSizes.get(dir) > maxDirSize;
+      if (expired || dirOverQuota) {
+        result.add(entry.getKey());
+        dirSizes.put(dir, dirSizes.get(dir) - size);
+        totalSize -= size;
+        it.remove();
+      }
+      else if (latest) {
+        it.remove();
+      }
+    }
+
+    if (scope == null) {
+      for (Iterator<Map.Entry<File, Entry>> it = byUsage.iterator(); it.hasNext() && maxTotalSize > 0 && totalSize > maxTotalSize;) {
+        final Map.Entry<File, Entry> entry = it.next();
+        result.add(entry.getKey());
+        totalSize -= entry.getValue().mySize;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the directory holding the snapshots of all paths of a root, the roots bound to the same shared snapshots
+   * directory share it, so its size quota applies to all of them together
+   */
+  @NotNull
+  private static File getSnapshotsDir(@NotNull final File cacheFile) {
+    final File dir = cacheFile.getParentFile().getParentFile();
+    return dir == null ? cacheFile.getParentFile() : dir;
+  }
+
+  private static long getVersion(@NotNull final File cacheFile) {
+    try {
+      return Long.parseLong(cacheFile.getName());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private void ensureLoaded() {
+    if (myLoaded) return;
+    myLoaded = true;
+    final File[] rootDirs = myBaseDir.listFiles();
+    if (rootDirs == null) return;
+    for (File rootDir : rootDirs) {
+      final File[] subDirs = rootDir.listFiles();
+      if (subDirs == null) continue;
+      for (File subDir : subDirs) {
+        final File[] cacheFiles = subDir.listFiles();
+        if (cacheFiles == null) continue;
+        for (File cacheFile : cacheFiles) {
+          try {
+            Long.parseLong(cacheFile.getName());
+            myEntries.put(cacheFile, new Entry(cacheFile.length(), cacheFile.lastModified()));
+          } catch (NumberFormatException e) {
+            //ignore
+          }
+        }
+      }
+    }
+  }
+
+  private static class Entry {
+    private final long mySize;
+    private long myLastUsed;
+
+    private Entry(final long size, final long lastUsed) {
+      mySize = size;
+      myLastUsed = lastUsed;
+    }
+  }
+}
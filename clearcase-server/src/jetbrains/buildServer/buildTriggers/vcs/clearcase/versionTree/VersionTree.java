@@ -27,7 +27,29 @@ import org.jetbrains.annotations.Nullable;
 public class VersionTree {
   private final List<Branch> myTopBranches = new ArrayList<Branch>();
   //private final List<Version> myLeaves = new ArrayList<Version>();
+  @Nullable private Set<String> myLoadedBranches;
+
+  /**
+   * Marks the tree as partial: only versions on the branches are loaded, other branches are omitted.
+   * @param branchPaths whole paths of the loaded branches like "/main/release", null if all branches are loaded
+   */
+  public void setLoadedBranches(@Nullable final Set<String> branchPaths) {
+    myLoadedBranches = branchPaths;
+  }
+
+  public boolean isPartial() {
+    return myLoadedBranches != null;
+  }
 
+  /**
+   * @return true if the branch of the version is loaded to the tree
+   */
+  public boolean isBranchLoaded(final String version) {
+    if (myLoadedBranches == null) return true;
+    final String wholeVersion = version.startsWith(File.separator) ? version : File.separator + version;
+    final int lastSepPos = wholeVersion.lastIndexOf(File.separatorChar);
+    return myLoadedBranches.contains(wholeVersion.substring(0, lastSepPos));
+  }
 
   public List<Branch> getTopBranches() {
     return myTopBranches;
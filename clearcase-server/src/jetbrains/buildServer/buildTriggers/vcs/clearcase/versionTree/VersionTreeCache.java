@@ -0,0 +1,75 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Versions of elements read ahead of time. A version tree grows with every checkin, so an entry can only be used
+ * for a revision which is not later than the moment the entry was read, and entries expire quickly.
+ */
+public class VersionTreeCache {
+  private static final String TTL_PROPERTY = "clearcase.version.tree.cache.ttl.seconds";
+  private static final String MAX_ENTRIES_PROPERTY = "clearcase.version.tree.cache.max.entries";
+
+  private final @NotNull LinkedHashMap<String, Entry> myEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  public synchronized void put(final @NotNull String elementPath, final boolean isDirectory, final @NotNull List<String> versions) {
+    myEntries.put(createKey(elementPath, isDirectory), new Entry(versions, System.currentTimeMillis()));
+    final int maxEntries = TeamCityProperties.getInteger(MAX_ENTRIES_PROPERTY, 10000);
+    for (Iterator<Entry> it = myEntries.values().iterator(); it.hasNext() && myEntries.size() > maxEntries;) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  /**
+   * @param readNotBefore the entry must be read at this moment or later
+   * @return versions of the element or null if they are not cached or the cached versions may be incomplete
+   */
+  @Nullable
+  public synchronized List<String> get(final @NotNull String elementPath, final boolean isDirectory, final long readNotBefore) {
+    final String key = createKey(elementPath, isDirectory);
+    final Entry entry = myEntries.get(key);
+    if (entry == null) return null;
+    if (System.currentTimeMillis() - entry.myReadTime > TeamCityProperties.getInteger(TTL_PROPERTY, 600) * 1000L) {
+      myEntries.remove(key);
+      return null;
+    }
+    return entry.myReadTime < readNotBefore ? null : entry.myVersions;
+  }
+
+  @NotNull
+  private static String createKey(final @NotNull String elementPath, final boolean isDirectory) {
+    return (isDirectory ? "d:" : "f:") + elementPath;
+  }
+
+  private static class Entry {
+    private final @NotNull List<String> myVersions;
+    private final long myReadTime;
+
+    private Entry(final @NotNull List<String> versions, final long readTime) {
+      myVersions = versions;
+      myReadTime = readTime;
+    }
+  }
+}
@@ -50,7 +50,7 @@ public class EditClearcaseSettingsController extends BaseAjaxActionController {
         }
 
         try {
-          final ViewPath viewPath = ClearCaseSupport.getViewPath(request.getParameter("view-path-value"));
+          final ViewPath viewPath = ClearCaseSupport.resolveViewPath(request.getParameter("view-path-value"));
 
           final Element ccViewPath = new Element("cc-view-path");
           ccViewPath.addContent(viewPath.getClearCaseViewPath());
@@ -89,7 +89,7 @@ public class EditClearcaseSettingsController extends BaseAjaxActionController {
             viewPath = new ViewPath(ccViewPath, relPath);
           }
           else if (!StringUtil.isEmptyOrSpaces(viewPathValue)) {
-            viewPath = ClearCaseSupport.getViewPath(viewPathValue);
+            viewPath = ClearCaseSupport.resolveViewPath(viewPathValue);
           }
           else {
             throw new VcsException("view path is not specified");
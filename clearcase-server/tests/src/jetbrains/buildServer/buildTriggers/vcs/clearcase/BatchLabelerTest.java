@@ -0,0 +1,115 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class BatchLabelerTest {
+  private static final String VIEW_PATH = File.separator + "view" + File.separator + "vob";
+
+  @AfterMethod
+  public void tearDown() {
+    System.clearProperty("clearcase.label.batch.size");
+  }
+
+  public void elements_on_the_same_version_are_labeled_at_once() throws VcsException {
+    final RecordingLabeler labeler = new RecordingLabeler();
+    try {
+      labeler.processFile(file("a.txt"), "a.txt", "a.txt", "/main/1", null, true, false);
+      labeler.processFile(file("b.txt"), "b.txt", "b.txt", "/main/2", null, true, false);
+      labeler.processFile(file("c.txt"), "c.txt", "c.txt", "/main/1", null, true, false);
+      labeler.processDirectory(file("dir"), "dir", "dir", "/main/1", null);
+      labeler.finish();
+    } finally {
+      labeler.dispose();
+    }
+
+    assertEquals(labeler.getBatchSizes("/main/1"), Arrays.asList(3));
+    assertEquals(labeler.getBatchSizes("/main/2"), Arrays.asList(1));
+  }
+
+  public void batches_are_limited_by_size() throws VcsException {
+    System.setProperty("clearcase.label.batch.size", "2");
+    final RecordingLabeler labeler = new RecordingLabeler();
+    try {
+      for (int i = 0; i < 5; i++) {
+        labeler.processFile(file(i + ".txt"), i + ".txt", i + ".txt", "/main/1", null, true, false);
+      }
+      labeler.finish();
+    } finally {
+      labeler.dispose();
+    }
+
+    assertEquals(labeler.getBatchSizes("/main/1"), Arrays.asList(1, 2, 2));
+  }
+
+  public void failed_mklabel_fails_labeling() {
+    final BatchLabeler labeler = new BatchLabeler("REL_1", VIEW_PATH) {
+      @Override
+      void mklabel(@NotNull final String version, @NotNull final List<String> pnames) throws IOException {
+        throw new IOException("mklabel failed");
+      }
+    };
+    try {
+      labeler.processFile(file("a.txt"), "a.txt", "a.txt", "/main/1", null, true, false);
+      labeler.finish();
+      fail("Exception expected");
+    } catch (VcsException e) {
+      //expected
+    } finally {
+      labeler.dispose();
+    }
+  }
+
+  private static String file(final String name) {
+    return VIEW_PATH + File.separator + name;
+  }
+
+  private static class RecordingLabeler extends BatchLabeler {
+    private final Map<String, List<Integer>> myBatchSizes = new HashMap<String, List<Integer>>();
+
+    private RecordingLabeler() {
+      super("REL_1", VIEW_PATH);
+    }
+
+    @Override
+    synchronized void mklabel(@NotNull final String version, @NotNull final List<String> pnames) {
+      List<Integer> sizes = myBatchSizes.get(version);
+      if (sizes == null) {
+        sizes = new ArrayList<Integer>();
+        myBatchSizes.put(version, sizes);
+      }
+      sizes.add(pnames.size());
+    }
+
+    @NotNull
+    private synchronized List<Integer> getBatchSizes(@NotNull final String version) {
+      final List<Integer> sizes = new ArrayList<Integer>(myBatchSizes.get(version));
+      Collections.sort(sizes);
+      return sizes;
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.clearcase.Constants;
+import jetbrains.buildServer.vcs.impl.VcsRootImpl;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class ChangeProbeTest {
+  private static final String VOB_PATH = path("view", "vobs", "a");
+  private static final String ROOT_PATH = path("view", "vobs", "a", "src");
+
+  @AfterMethod
+  public void tearDown() {
+    System.clearProperty("clearcase.change.probe.enabled");
+  }
+
+  public void version_is_unknown_before_it_is_computed() {
+    final RecordingProbe probe = new RecordingProbe(false);
+
+    assertNull(probe.getCurrentVersionIfUnchanged(createRoot(1, ROOT_PATH)));
+    assertTrue(probe.myProbedPaths.isEmpty());
+  }
+
+  public void computed_version_is_returned_while_path_is_quiet() {
+    final RecordingProbe probe = new RecordingProbe(false);
+    final VcsRoot root = createRoot(1, ROOT_PATH);
+    final long computeTime = System.currentTimeMillis();
+
+    probe.currentVersionComputed(root, "version", computeTime);
+
+    assertEquals(probe.getCurrentVersionIfUnchanged(root), "version");
+    assertEquals(probe.myProbedPaths.size(), 1);
+    assertEquals(probe.myProbedPaths.get(0), ROOT_PATH);
+    assertTrue(probe.mySince.getTime() < computeTime);
+  }
+
+  public void computed_version_is_not_returned_after_versions_are_created() {
+    final RecordingProbe probe = new RecordingProbe(true);
+    final VcsRoot root = createRoot(1, ROOT_PATH);
+
+    probe.currentVersionComputed(root, "version", System.currentTimeMillis());
+
+    assertNull(probe.getCurrentVersionIfUnchanged(root));
+  }
+
+  public void computed_version_expires() {
+    final RecordingProbe probe = new RecordingProbe(false);
+    final VcsRoot root = createRoot(1, ROOT_PATH);
+
+    probe.currentVersionComputed(root, "version", System.currentTimeMillis() - 601 * 1000L);
+
+    assertNull(probe.getCurrentVersionIfUnchanged(root));
+    assertTrue(probe.myProbedPaths.isEmpty());
+  }
+
+  public void computed_version_is_not_returned_when_probe_fails() {
+    final RecordingProbe probe = new RecordingProbe(false) {
+      @Override
+      boolean hasVersionsCreatedSince(@NotNull final String path, @NotNull final Date since) throws VcsException {
+        throw new VcsException("find failed");
+      }
+    };
+    final VcsRoot root = createRoot(1, ROOT_PATH);
+
+    probe.currentVersionComputed(root, "version", System.currentTimeMillis());
+
+    assertNull(probe.getCurrentVersionIfUnchanged(root));
+  }
+
+  public void computed_version_is_not_returned_when_probe_is_disabled() {
+    final RecordingProbe probe = new RecordingProbe(false);
+    final VcsRoot root = createRoot(1, ROOT_PATH);
+    probe.currentVersionComputed(root, "version", System.currentTimeMillis());
+
+    System.setProperty("clearcase.change.probe.enabled", "false");
+
+    assertNull(probe.getCurrentVersionIfUnchanged(root));
+  }
+
+  public void quiet_path_is_shared_by_roots_below_it() {
+    final RecordingProbe probe = new RecordingProbe(false);
+    final VcsRoot vobRoot = createRoot(1, VOB_PATH);
+    final VcsRoot sameRoot = createRoot(2, VOB_PATH);
+    final VcsRoot subRoot = createRoot(3, ROOT_PATH);
+    final long computeTime = System.currentTimeMillis();
+    probe.currentVersionComputed(vobRoot, "version1", computeTime);
+    probe.currentVersionComputed(sameRoot, "version2", computeTime);
+    probe.currentVersionComputed(subRoot, "version3", computeTime);
+
+    assertEquals(probe.getCurrentVersionIfUnchanged(vobRoot), "version1");
+    assertEquals(probe.getCurrentVersionIfUnchanged(sameRoot), "version2");
+    assertEquals(probe.getCurrentVersionIfUnchanged(subRoot), "version3");
+    assertEquals(probe.myProbedPaths.size(), 1);
+  }
+
+  public void quiet_path_is_not_shared_by_roots_above_it() {
+    final RecordingProbe probe = new RecordingProbe(false);
+    final VcsRoot subRoot = createRoot(1, ROOT_PATH);
+    final VcsRoot vobRoot = createRoot(2, VOB_PATH);
+    final long computeTime = System.currentTimeMillis();
+    probe.currentVersionComputed(subRoot, "version1", computeTime);
+    probe.currentVersionComputed(vobRoot, "version2", computeTime);
+
+    probe.getCurrentVersionIfUnchanged(subRoot);
+    probe.getCurrentVersionIfUnchanged(vobRoot);
+
+    assertEquals(probe.myProbedPaths.size(), 2);
+    assertEquals(probe.myProbedPaths.get(1), VOB_PATH);
+  }
+
+  @NotNull
+  private static VcsRoot createRoot(final long id, @NotNull final String path) {
+    final VcsRootImpl root = new VcsRootImpl(id, "clearcase");
+    root.addProperty(Constants.VIEW_PATH, path);
+    return root;
+  }
+
+  @NotNull
+  private static String path(@NotNull final String... names) {
+    final StringBuilder sb = new StringBuilder();
+    for (String name : names) {
+      sb.append(File.separatorChar).append(name);
+    }
+    return sb.toString();
+  }
+
+  private static class RecordingProbe extends ChangeProbe {
+    private final boolean myHasVersions;
+    private final List<String> myProbedPaths = new ArrayList<String>();
+    private Date mySince;
+
+    private RecordingProbe(final boolean hasVersions) {
+      myHasVersions = hasVersions;
+    }
+
+    @NotNull
+    @Override
+    String getPath(@NotNull final VcsRoot root) {
+      return root.getProperty(Constants.VIEW_PATH);
+    }
+
+    @Override
+    boolean hasVersionsCreatedSince(@NotNull final String path, @NotNull final Date since) throws VcsException {
+      myProbedPaths.add(path);
+      mySince = since;
+      return myHasVersions;
+    }
+  }
+}
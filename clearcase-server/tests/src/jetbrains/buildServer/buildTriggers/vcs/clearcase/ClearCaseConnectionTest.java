@@ -0,0 +1,92 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class ClearCaseConnectionTest {
+  private File myTempDir;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myTempDir = FileUtil.createTempDirectory("cc", "view");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myTempDir);
+  }
+
+  public void copies_version_exposed_by_dynamic_view() throws IOException {
+    // a dynamic view shows the version as a file under the version-extended path
+    final File versionFile = new File(myTempDir, "file.txt@@" + File.separator + "main" + File.separator + "3");
+    writeFile(versionFile, "version 3");
+    final File destFile = new File(myTempDir, "dest");
+
+    assertTrue(ClearCaseConnection.copyVersionFromView(versionFile.getAbsolutePath(), destFile));
+    assertEquals(new String(FileUtil.loadFileBytes(destFile), "UTF-8"), "version 3");
+  }
+
+  public void copies_empty_version() throws IOException {
+    final File versionFile = new File(myTempDir, "empty.txt@@" + File.separator + "main" + File.separator + "1");
+    writeFile(versionFile, "");
+    final File destFile = new File(myTempDir, "dest");
+
+    assertTrue(ClearCaseConnection.copyVersionFromView(versionFile.getAbsolutePath(), destFile));
+    assertTrue(destFile.isFile());
+    assertEquals(destFile.length(), 0);
+  }
+
+  public void falls_back_when_version_is_not_visible() {
+    final File destFile = new File(myTempDir, "dest");
+
+    assertFalse(ClearCaseConnection.copyVersionFromView(new File(myTempDir, "missing.txt@@/main/1").getAbsolutePath(), destFile));
+    assertFalse(destFile.exists());
+  }
+
+  public void falls_back_for_version_directory() {
+    final File versionDir = new File(myTempDir, "dir@@" + File.separator + "main" + File.separator + "2");
+    assertTrue(versionDir.mkdirs());
+
+    assertFalse(ClearCaseConnection.copyVersionFromView(versionDir.getAbsolutePath(), new File(myTempDir, "dest")));
+  }
+
+  public void falls_back_for_relative_path() throws IOException {
+    writeFile(new File(myTempDir, "file.txt@@" + File.separator + "main" + File.separator + "3"), "version 3");
+
+    assertFalse(ClearCaseConnection.copyVersionFromView("file.txt@@" + File.separator + "main" + File.separator + "3", new File(myTempDir, "dest")));
+  }
+
+  private static void writeFile(final File file, final String text) throws IOException {
+    FileUtil.createParentDirs(file);
+    final FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(text.getBytes("UTF-8"));
+    } finally {
+      output.close();
+    }
+  }
+}
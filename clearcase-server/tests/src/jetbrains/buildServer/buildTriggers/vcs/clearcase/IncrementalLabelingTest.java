@@ -0,0 +1,77 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.IncludeRule;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class IncrementalLabelingTest {
+  private static final IncludeRule SRC_RULE = new IncludeRule("src", "src", null);
+  private static final IncludeRule DOC_RULE = new IncludeRule("doc", "doc", null);
+
+  private File myRootCacheDir;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myRootCacheDir = FileUtil.createTempDirectory("cc", "labels");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myRootCacheDir);
+  }
+
+  public void baseline_is_kept_per_label_and_include_rule() {
+    final Revision revision = Revision.fromDate(new Date(1000000000000L));
+
+    IncrementalLabeling.setBaseline(myRootCacheDir, "REL_1", SRC_RULE, revision);
+
+    final Revision baseline = IncrementalLabeling.getBaseline(myRootCacheDir, "REL_1", SRC_RULE);
+    assertNotNull(baseline);
+    assertEquals(baseline.asString(), revision.asString());
+    assertNull(IncrementalLabeling.getBaseline(myRootCacheDir, "REL_1", DOC_RULE));
+    assertNull(IncrementalLabeling.getBaseline(myRootCacheDir, "REL_2", SRC_RULE));
+  }
+
+  public void clearing_baselines_forgets_all_include_rules_of_the_label_only() {
+    final Revision revision = Revision.fromDate(new Date(1000000000000L));
+    IncrementalLabeling.setBaseline(myRootCacheDir, "REL_1", SRC_RULE, revision);
+    IncrementalLabeling.setBaseline(myRootCacheDir, "REL_1", DOC_RULE, revision);
+    IncrementalLabeling.setBaseline(myRootCacheDir, "REL_2", SRC_RULE, revision);
+
+    IncrementalLabeling.clearBaselines(myRootCacheDir, "REL_1");
+
+    assertNull(IncrementalLabeling.getBaseline(myRootCacheDir, "REL_1", SRC_RULE));
+    assertNull(IncrementalLabeling.getBaseline(myRootCacheDir, "REL_1", DOC_RULE));
+    assertNotNull(IncrementalLabeling.getBaseline(myRootCacheDir, "REL_2", SRC_RULE));
+  }
+
+  public void clearing_baselines_without_cache_dir_does_nothing() {
+    IncrementalLabeling.clearBaselines(null, "REL_1");
+
+    assertNull(IncrementalLabeling.getBaseline(null, "REL_1", SRC_RULE));
+  }
+}
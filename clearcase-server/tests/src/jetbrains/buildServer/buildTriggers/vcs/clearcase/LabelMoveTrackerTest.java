@@ -0,0 +1,156 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class LabelMoveTrackerTest {
+  private static final String D = ClearCaseConnection.DELIMITER;
+  private static final SortedSet<String> LABELS = new TreeSet<String>(Arrays.asList("REL_1", "REL_2"));
+
+  private File myTempDir;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myTempDir = FileUtil.createTempDirectory("cc", "labels");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    System.clearProperty("clearcase.label.move.check.interval.seconds");
+    FileUtil.delete(myTempDir);
+  }
+
+  public void latest_event_of_tracked_labels_is_found() throws IOException {
+    final String history = "mklabel" + D + "20220110.120000" + D + "Created label \"REL_1\" on \"/vobs/a/Foo.java\" version \"/main/3\".\n" +
+                           "rmlabel" + D + "20220112.090000" + D + "Removed label \"REL_2\" from \"/vobs/a/Bar.java\" version \"/main/1\".\n" +
+                           "mklabel" + D + "20220113.090000" + D + "Created label \"REL_3\" on \"/vobs/a/Foo.java\" version \"/main/4\".\n" +
+                           "checkin" + D + "20220114.090000" + D + "REL_1\n";
+
+    assertEquals(LabelMoveTracker.findLatestLabelEvent(new ByteArrayInputStream(history.getBytes("UTF-8")), LABELS), "20220112.090000");
+  }
+
+  public void no_event_is_found_in_history_without_label_events() throws IOException {
+    final String history = "checkin" + D + "20220114.090000" + D + "Created label \"REL_1\"\n" +
+                           "mklabel" + D + "20220113.090000" + D + "Created label \"REL_10\" on \"/vobs/a/Foo.java\" version \"/main/4\".\n";
+
+    assertNull(LabelMoveTracker.findLatestLabelEvent(new ByteArrayInputStream(history.getBytes("UTF-8")), LABELS));
+  }
+
+  public void history_is_not_read_when_tracking_starts() {
+    final RecordingHistory history = new RecordingHistory(null);
+
+    assertNotNull(getFingerprint(history));
+    assertNull(history.mySince);
+  }
+
+  public void history_is_not_read_within_check_interval() {
+    final String fingerprint = getFingerprint(new RecordingHistory(null));
+    final RecordingHistory history = new RecordingHistory("29991231.000000");
+
+    assertEquals(getFingerprint(history), fingerprint);
+    assertNull(history.mySince);
+  }
+
+  public void label_event_changes_fingerprint() {
+    System.setProperty("clearcase.label.move.check.interval.seconds", "0");
+    final String fingerprint = getFingerprint(new RecordingHistory(null));
+
+    assertEquals(getFingerprint(new RecordingHistory(null)), fingerprint);
+    assertEquals(getFingerprint(new RecordingHistory("29991231.000000")), "29991231.000000");
+    assertEquals(getFingerprint(new RecordingHistory(null)), "29991231.000000");
+  }
+
+  public void fingerprint_is_kept_when_history_cannot_be_read() {
+    System.setProperty("clearcase.label.move.check.interval.seconds", "0");
+    final String fingerprint = getFingerprint(new RecordingHistory(null));
+
+    assertEquals(getFingerprint(RecordingHistory.failing()), fingerprint);
+    assertEquals(getFingerprint(RecordingHistory.failing()), fingerprint);
+  }
+
+  public void missed_period_is_read_again_after_failure() {
+    System.setProperty("clearcase.label.move.check.interval.seconds", "0");
+    getFingerprint(new RecordingHistory(null));
+    getFingerprint(new RecordingHistory(null));
+    final RecordingHistory failed = RecordingHistory.failing();
+    getFingerprint(failed);
+    final RecordingHistory next = new RecordingHistory(null);
+
+    getFingerprint(next);
+
+    assertNotNull(failed.mySince);
+    assertEquals(next.mySince, failed.mySince);
+  }
+
+  public void failed_read_is_not_retried_within_check_interval() {
+    System.setProperty("clearcase.label.move.check.interval.seconds", "0");
+    getFingerprint(new RecordingHistory(null));
+    getFingerprint(RecordingHistory.failing());
+    System.setProperty("clearcase.label.move.check.interval.seconds", "60");
+    final RecordingHistory history = new RecordingHistory(null);
+
+    getFingerprint(history);
+
+    assertNull(history.mySince);
+  }
+
+  @NotNull
+  private String getFingerprint(@NotNull final LabelMoveTracker.LabelHistory history) {
+    return LabelMoveTracker.getFingerprint(LABELS, 1, myTempDir, "/view/vobs/a", history);
+  }
+
+  private static class RecordingHistory implements LabelMoveTracker.LabelHistory {
+    private final @Nullable String myLatestEvent;
+    private boolean myFails;
+    private @Nullable Date mySince;
+
+    private RecordingHistory(@Nullable final String latestEvent) {
+      myLatestEvent = latestEvent;
+    }
+
+    @NotNull
+    private static RecordingHistory failing() {
+      final RecordingHistory history = new RecordingHistory(null);
+      history.myFails = true;
+      return history;
+    }
+
+    @Nullable
+    public String findLatestLabelEvent(@NotNull final Date since) throws VcsException {
+      mySince = since;
+      if (myFails) throw new VcsException("lshistory failed");
+      return myLatestEvent;
+    }
+  }
+}
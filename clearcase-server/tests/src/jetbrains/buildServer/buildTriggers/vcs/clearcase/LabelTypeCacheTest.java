@@ -0,0 +1,88 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class LabelTypeCacheTest {
+  public void added_label_is_known_only_in_its_vob() {
+    final LabelTypeCache cache = new LabelTypeCache();
+
+    cache.add("/vobs/a", "REL_1");
+
+    assertTrue(cache.contains("/vobs/a", "REL_1"));
+    assertFalse(cache.contains("/vobs/b", "REL_1"));
+    assertFalse(cache.contains("/vobs/a", "REL_2"));
+  }
+
+  public void removed_label_is_forgotten_in_its_vob_only() {
+    final LabelTypeCache cache = new LabelTypeCache();
+    cache.add("/vobs/a", "REL_1");
+    cache.add("/vobs/b", "REL_1");
+
+    cache.remove("/vobs/a", "REL_1");
+
+    assertFalse(cache.contains("/vobs/a", "REL_1"));
+    assertTrue(cache.contains("/vobs/b", "REL_1"));
+  }
+
+  public void label_removed_everywhere_is_forgotten_in_all_vobs() {
+    final LabelTypeCache cache = new LabelTypeCache();
+    cache.add("/vobs/a", "REL_1");
+    cache.add("/vobs/a", "REL_2");
+    cache.add("/vobs/b", "REL_1");
+
+    cache.removeEverywhere("REL_1");
+
+    assertFalse(cache.contains("/vobs/a", "REL_1"));
+    assertFalse(cache.contains("/vobs/b", "REL_1"));
+    assertTrue(cache.contains("/vobs/a", "REL_2"));
+  }
+
+  public void removing_unknown_label_is_ignored() {
+    final LabelTypeCache cache = new LabelTypeCache();
+
+    cache.remove("/vobs/a", "REL_1");
+    cache.removeEverywhere("REL_1");
+
+    assertFalse(cache.contains("/vobs/a", "REL_1"));
+  }
+
+  public void vob_tag_is_remembered_per_path() {
+    final LabelTypeCache cache = new LabelTypeCache();
+
+    cache.putVobTag("/view/vobs/a/src", "/vobs/a");
+
+    assertEquals(cache.getVobTag("/view/vobs/a/src"), "/vobs/a");
+    assertNull(cache.getVobTag("/view/vobs/b/src"));
+  }
+
+  public void least_recently_used_vob_tags_are_dropped() {
+    final LabelTypeCache cache = new LabelTypeCache();
+    cache.putVobTag("/view/first", "/vobs/first");
+    for (int i = 0; i < 1000; i++) {
+      cache.putVobTag("/view/" + i, "/vobs/" + i);
+    }
+
+    assertNull(cache.getVobTag("/view/first"));
+    assertEquals(cache.getVobTag("/view/0"), "/vobs/0");
+    assertEquals(cache.getVobTag("/view/999"), "/vobs/999");
+  }
+}
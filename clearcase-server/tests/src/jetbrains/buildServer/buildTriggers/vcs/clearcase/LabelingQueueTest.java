@@ -0,0 +1,178 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.clearcase.Constants;
+import jetbrains.buildServer.vcs.impl.VcsRootImpl;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class LabelingQueueTest {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private File myJobsDir;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myJobsDir = FileUtil.createTempDirectory("cc", "jobs");
+    System.setProperty("clearcase.label.async.retry.delay.seconds", "0");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    System.clearProperty("clearcase.label.async.retry.delay.seconds");
+    FileUtil.delete(myJobsDir);
+  }
+
+  public void queued_job_is_applied_and_forgotten() throws Exception {
+    final RecordingLabeler labeler = new RecordingLabeler(null, 0);
+
+    new LabelingQueue(labeler, myJobsDir).enqueue("REL_1", "v1", createRoot(), new CheckoutRules(""));
+
+    assertEquals(labeler.waitForLabels(1), Arrays.asList("REL_1 v1"));
+    waitForNoJobs();
+  }
+
+  public void pending_job_is_superseded_by_newer_one() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final RecordingLabeler labeler = new RecordingLabeler(release, 0);
+    final LabelingQueue queue = new LabelingQueue(labeler, myJobsDir);
+    final VcsRoot root = createRoot();
+
+    queue.enqueue("REL_1", "v1", root, new CheckoutRules(""));
+    labeler.waitForStart();
+    queue.enqueue("REL_1", "v2", root, new CheckoutRules(""));
+    queue.enqueue("REL_1", "v3", root, new CheckoutRules(""));
+    release.countDown();
+
+    assertEquals(labeler.waitForLabels(2), Arrays.asList("REL_1 v1", "REL_1 v3"));
+  }
+
+  public void failed_job_is_retried() throws Exception {
+    final RecordingLabeler labeler = new RecordingLabeler(null, 1);
+
+    new LabelingQueue(labeler, myJobsDir).enqueue("REL_1", "v1", createRoot(), new CheckoutRules(""));
+
+    assertEquals(labeler.waitForLabels(1), Arrays.asList("REL_1 v1"));
+    assertEquals(labeler.getAttempts(), 2);
+  }
+
+  public void pending_jobs_are_loaded_on_start() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final RecordingLabeler blockedLabeler = new RecordingLabeler(release, 0);
+    try {
+      new LabelingQueue(blockedLabeler, myJobsDir).enqueue("REL_1", "v1", createRoot(), new CheckoutRules(""));
+      blockedLabeler.waitForStart();
+
+      // the job file is left as if the server was stopped while the job was running
+      final RecordingLabeler labeler = new RecordingLabeler(null, 0);
+      new LabelingQueue(labeler, myJobsDir);
+
+      assertEquals(labeler.waitForLabels(1), Arrays.asList("REL_1 v1"));
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @NotNull
+  private static VcsRoot createRoot() {
+    final VcsRootImpl root = new VcsRootImpl(1, "clearcase");
+    root.addProperty(Constants.VIEW_PATH, File.separator + "view" + File.separator + "vob");
+    return root;
+  }
+
+  private void waitForNoJobs() throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+    while (true) {
+      final String[] jobFiles = myJobsDir.list();
+      if (jobFiles == null || jobFiles.length == 0) return;
+      if (System.currentTimeMillis() > deadline) fail("Job files are not deleted: " + Arrays.asList(jobFiles));
+      Thread.sleep(10);
+    }
+  }
+
+  private static class RecordingLabeler implements LabelingQueue.Labeler {
+    private final @Nullable CountDownLatch myRelease;
+    private final Semaphore myStarted = new Semaphore(0);
+    private final Semaphore myLabeled = new Semaphore(0);
+    private final List<String> myLabels = new ArrayList<String>();
+    private int myFailures;
+    private int myAttempts;
+
+    /**
+     * @param release the labeling waits for it if not null
+     * @param failures the number of the first calls which fail
+     */
+    private RecordingLabeler(@Nullable final CountDownLatch release, final int failures) {
+      myRelease = release;
+      myFailures = failures;
+    }
+
+    public void doLabel(@NotNull final String label, @NotNull final String version, @NotNull final VcsRoot root, @NotNull final CheckoutRules checkoutRules)
+      throws VcsException {
+      myStarted.release();
+      try {
+        if (myRelease != null && !myRelease.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) throw new VcsException("Not released");
+      } catch (InterruptedException e) {
+        throw new VcsException(e);
+      }
+      synchronized (this) {
+        myAttempts++;
+        if (myFailures > 0) {
+          myFailures--;
+          throw new VcsException("Labeling failed");
+        }
+        myLabels.add(label + " " + version);
+      }
+      myLabeled.release();
+    }
+
+    private void waitForStart() throws InterruptedException {
+      assertTrue(myStarted.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @NotNull
+    private List<String> waitForLabels(final int count) throws InterruptedException {
+      assertTrue(myLabeled.tryAcquire(count, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      synchronized (this) {
+        return new ArrayList<String>(myLabels);
+      }
+    }
+
+    private synchronized int getAttempts() {
+      return myAttempts;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import jetbrains.buildServer.vcs.VcsException;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class ConfigSpecDiffUtilTest {
+  private static final String DEFAULT_RULES = "element * CHECKEDOUT\n" +
+                                              "element * /main/LATEST\n";
+
+  public void same_config_spec_affects_nothing() throws Exception {
+    final String text = "element * CHECKEDOUT\n" +
+                        "element /vob/src/... /main/feature/LATEST\n" +
+                        "element * /main/LATEST\n";
+
+    assertEquals(ConfigSpecDiffUtil.getAffectedPaths(parse(text), parse(text)), Collections.<String>emptySet());
+  }
+
+  public void added_scoped_rule_affects_its_scope() throws Exception {
+    final ConfigSpec oldSpec = parse(DEFAULT_RULES);
+    final ConfigSpec newSpec = parse("element * CHECKEDOUT\n" +
+                                     "element /vob/src/... /main/feature/LATEST\n" +
+                                     "element * /main/LATEST\n");
+
+    assertEquals(ConfigSpecDiffUtil.getAffectedPaths(oldSpec, newSpec), paths("vob" + File.separator + "src"));
+  }
+
+  public void changed_scoped_rules_affect_both_scopes() throws Exception {
+    final ConfigSpec oldSpec = parse("element * CHECKEDOUT\n" +
+                                     "element /vob/src/... /main/feature/LATEST\n" +
+                                     "element * /main/LATEST\n");
+    final ConfigSpec newSpec = parse("element * CHECKEDOUT\n" +
+                                     "element /vob/doc/... /main/feature/LATEST\n" +
+                                     "element * /main/LATEST\n");
+
+    assertEquals(ConfigSpecDiffUtil.getAffectedPaths(oldSpec, newSpec),
+                 paths("vob" + File.separator + "src", "vob" + File.separator + "doc"));
+  }
+
+  public void changed_rule_for_all_elements_affects_whole_view() throws Exception {
+    final ConfigSpec oldSpec = parse(DEFAULT_RULES);
+    final ConfigSpec newSpec = parse("element * CHECKEDOUT\n" +
+                                     "element * /main/feature/LATEST\n");
+
+    assertNull(ConfigSpecDiffUtil.getAffectedPaths(oldSpec, newSpec));
+  }
+
+  public void rule_with_wildcard_at_top_affects_whole_view() throws Exception {
+    final ConfigSpec oldSpec = parse(DEFAULT_RULES);
+    final ConfigSpec newSpec = parse("element * CHECKEDOUT\n" +
+                                     "element .../src/... /main/feature/LATEST\n" +
+                                     "element * /main/LATEST\n");
+
+    assertNull(ConfigSpecDiffUtil.getAffectedPaths(oldSpec, newSpec));
+  }
+
+  public void added_load_rule_affects_its_path() throws Exception {
+    final ConfigSpec oldSpec = parse(DEFAULT_RULES + "load /vob/src\n");
+    final ConfigSpec newSpec = parse(DEFAULT_RULES + "load /vob/src\n" + "load /vob/doc\n");
+
+    assertEquals(ConfigSpecDiffUtil.getAffectedPaths(oldSpec, newSpec), paths("vob" + File.separator + "doc"));
+  }
+
+  private static ConfigSpec parse(final String text) throws VcsException, IOException {
+    return ConfigSpecParseUtil.getConfigSpecFromStream(new File("view"), new ByteArrayInputStream(text.getBytes("UTF-8")), null);
+  }
+
+  private static Set<String> paths(final String... paths) {
+    return new HashSet<String>(Arrays.asList(paths));
+  }
+}
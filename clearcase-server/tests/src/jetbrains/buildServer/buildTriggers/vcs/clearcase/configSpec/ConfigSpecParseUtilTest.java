@@ -0,0 +1,77 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class ConfigSpecParseUtilTest {
+  public void comments_and_layout_do_not_change_normalized_hash() throws Exception {
+    assertEquals(hash("element * CHECKEDOUT\n" +
+                      "element * /main/LATEST\n"),
+                 hash("# the default rules\n" +
+                      "\n" +
+                      "  element *   CHECKEDOUT ; element * /main/LATEST\n"));
+  }
+
+  public void rule_changes_change_normalized_hash() throws Exception {
+    final String text = "element * CHECKEDOUT\n" +
+                        "element * /main/LATEST\n";
+
+    assertFalse(hash(text).equals(hash("element * CHECKEDOUT\n" +
+                                       "element * /main/release/LATEST\n")));
+    assertFalse(hash(text).equals(hash(text + "load /vob/src\n")));
+    assertFalse(hash(text).equals(hash("time 10-Jan-2022\n" + text + "end time\n")));
+  }
+
+  public void included_rules_change_normalized_hash() throws Exception {
+    final File included = FileUtil.createTempFile("cs", "included");
+    try {
+      write(included, "element * /main/LATEST\n");
+      final String text = "element * CHECKEDOUT\n" +
+                          "include " + included.getAbsolutePath() + "\n";
+      final String before = hash(text);
+
+      write(included, "element * /main/release/LATEST\n");
+
+      assertFalse(hash(text).equals(before));
+    } finally {
+      FileUtil.delete(included);
+    }
+  }
+
+  private static String hash(final String text) throws VcsException, IOException {
+    return ConfigSpecParseUtil.getNormalizedHash(new ByteArrayInputStream(text.getBytes("UTF-8")));
+  }
+
+  private static void write(final File file, final String text) throws IOException {
+    final FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(text.getBytes("UTF-8"));
+    } finally {
+      output.close();
+    }
+  }
+}
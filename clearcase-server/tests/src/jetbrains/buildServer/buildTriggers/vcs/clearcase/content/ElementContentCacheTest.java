@@ -0,0 +1,186 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.content;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseFileAttr;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class ElementContentCacheTest {
+  private static final String VIEW_PATH = path("view", "vob", "root");
+  private static final String VERSION_PATH = path("view", "vob", "root@@", "main", "2", "src", "main", "5", "Foo.java", "main", "3");
+
+  private File myTempDir;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myTempDir = FileUtil.createTempDirectory("cc", "content");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myTempDir);
+  }
+
+  public void fully_version_extended_path_is_cacheable() {
+    assertTrue(ElementContentCache.isCacheable(VERSION_PATH, VIEW_PATH));
+  }
+
+  public void path_with_directories_selected_by_view_is_not_cacheable() {
+    assertFalse(ElementContentCache.isCacheable(path("view", "vob", "root", "src", "Foo.java@@", "main", "3"), VIEW_PATH));
+    assertFalse(ElementContentCache.isCacheable(path("view", "vob", "root@@", "main", "2", "src", "Foo.java@@", "main", "3"), VIEW_PATH));
+  }
+
+  public void path_without_version_is_not_cacheable() {
+    assertFalse(ElementContentCache.isCacheable(path("view", "vob", "root@@", "main", "2", "src", "main", "5", "Foo.java"), VIEW_PATH));
+  }
+
+  public void checked_out_version_is_not_cacheable() {
+    assertFalse(ElementContentCache.isCacheable(path("view", "vob", "root@@", "main", "2", "src", "main", "5", "Foo.java", "main", "CHECKEDOUT"), VIEW_PATH));
+  }
+
+  public void adopted_content_is_found_with_attributes() throws IOException {
+    final ElementContentCache cache = new ElementContentCache(myTempDir);
+    final File file = cache.createIncomingFile();
+    writeFile(file, "content");
+
+    cache.adopt(VERSION_PATH, file, hash("content"), new ClearCaseFileAttr(true, false));
+
+    assertFalse(file.exists());
+    final File copy = new File(myTempDir, "copy");
+    assertTrue(cache.copyFile(VERSION_PATH, copy));
+    assertEquals(new String(FileUtil.loadFileBytes(copy), "UTF-8"), "content");
+    final ClearCaseFileAttr fileAttr = cache.getFileAttr(VERSION_PATH);
+    assertNotNull(fileAttr);
+    assertTrue(fileAttr.isIsExecutable());
+    assertFalse(fileAttr.isIsText());
+  }
+
+  public void content_adopted_without_attributes_has_no_attributes() throws IOException {
+    final ElementContentCache cache = new ElementContentCache(myTempDir);
+    final File file = cache.createIncomingFile();
+    writeFile(file, "content");
+
+    cache.adopt(VERSION_PATH, file, hash("content"), null);
+
+    assertTrue(cache.contains(VERSION_PATH));
+    assertNull(cache.getFileAttr(VERSION_PATH));
+  }
+
+  public void attributes_without_flags_are_cached() throws IOException {
+    final ElementContentCache cache = new ElementContentCache(myTempDir);
+    final File file = cache.createIncomingFile();
+    writeFile(file, "content");
+
+    cache.adopt(VERSION_PATH, file, hash("content"), new ClearCaseFileAttr(false, false));
+
+    final ClearCaseFileAttr fileAttr = cache.getFileAttr(VERSION_PATH);
+    assertNotNull(fileAttr);
+    assertFalse(fileAttr.isIsExecutable());
+    assertFalse(fileAttr.isIsText());
+  }
+
+  public void missing_version_is_not_copied() throws IOException {
+    final File copy = new File(myTempDir, "copy");
+
+    assertFalse(new ElementContentCache(myTempDir).copyFile(VERSION_PATH, copy));
+    assertFalse(copy.exists());
+  }
+
+  public void key_files_are_evicted_with_their_content() throws IOException {
+    System.setProperty("clearcase.content.cache.disk.mb", "1");
+    try {
+      final ElementContentCache cache = new ElementContentCache(myTempDir);
+      final String otherVersionPath = VERSION_PATH.substring(0, VERSION_PATH.length() - 1) + "4";
+      adopt(cache, VERSION_PATH, 'a', 600 * 1024);
+      adopt(cache, otherVersionPath, 'b', 600 * 1024);
+
+      assertFalse(cache.contains(VERSION_PATH));
+      assertTrue(cache.contains(otherVersionPath));
+      assertEquals(countFiles(new File(myTempDir, "keys")), 1);
+    } finally {
+      System.clearProperty("clearcase.content.cache.disk.mb");
+    }
+  }
+
+  public void key_files_without_content_are_deleted_on_load() throws IOException {
+    final File file = new ElementContentCache(myTempDir).createIncomingFile();
+    writeFile(file, "content");
+    new ElementContentCache(myTempDir).adopt(VERSION_PATH, file, hash("content"), null);
+    FileUtil.delete(new File(myTempDir, "data"));
+
+    final ElementContentCache cache = new ElementContentCache(myTempDir);
+
+    assertFalse(cache.contains(VERSION_PATH));
+    assertEquals(countFiles(new File(myTempDir, "keys")), 0);
+  }
+
+  private static void adopt(final ElementContentCache cache, final String versionPath, final char c, final int size) throws IOException {
+    final StringBuilder content = new StringBuilder(size);
+    for (int i = 0; i < size; i++) {
+      content.append(c);
+    }
+    final File file = cache.createIncomingFile();
+    writeFile(file, content.toString());
+    cache.adopt(versionPath, file, hash(content.toString()), null);
+  }
+
+  private static int countFiles(final File dir) {
+    int count = 0;
+    final File[] subDirs = dir.listFiles();
+    if (subDirs == null) return count;
+    for (File subDir : subDirs) {
+      final String[] files = subDir.list();
+      if (files != null) {
+        count += files.length;
+      }
+    }
+    return count;
+  }
+
+  private static String hash(final String content) throws IOException {
+    final MessageDigest digest = ElementContentCache.createDigest();
+    digest.update(content.getBytes("UTF-8"));
+    return ElementContentCache.toHex(digest.digest());
+  }
+
+  private static String path(final String... names) {
+    final StringBuilder sb = new StringBuilder();
+    for (String name : names) {
+      sb.append(File.separatorChar).append(name);
+    }
+    return sb.toString();
+  }
+
+  private static void writeFile(final File file, final String text) throws IOException {
+    final FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(text.getBytes("UTF-8"));
+    } finally {
+      output.close();
+    }
+  }
+}
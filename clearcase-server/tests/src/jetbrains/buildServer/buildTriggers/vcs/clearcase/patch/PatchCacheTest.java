@@ -0,0 +1,158 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.patch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.patches.PatchBuilder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class PatchCacheTest {
+  private File myTempDir;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myTempDir = FileUtil.createTempDirectory("cc", "patch");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myTempDir);
+  }
+
+  public void key_depends_on_root_settings() {
+    assertEquals(PatchCache.createKey(1, 10, "=>", "from", "to", 5, null), PatchCache.createKey(1, 10, "=>", "from", "to", 5, null));
+    assertFalse(PatchCache.createKey(1, 10, "=>", "from", "to", 5, null).equals(PatchCache.createKey(1, 11, "=>", "from", "to", 5, null)));
+  }
+
+  public void key_depends_on_versions_and_config_spec() {
+    final String key = PatchCache.createKey(1, 10, "=>", "from", "to", 5, null);
+
+    assertFalse(key.equals(PatchCache.createKey(1, 10, "=>", null, "to", 5, null)));
+    assertFalse(key.equals(PatchCache.createKey(1, 10, "=>", "from", "to2", 5, null)));
+    assertFalse(key.equals(PatchCache.createKey(1, 10, "=>", "from", "to", 6, null)));
+    assertFalse(key.equals(PatchCache.createKey(2, 10, "=>", "from", "to", 5, null)));
+  }
+
+  public void key_depends_on_labels_fingerprint() {
+    final String key = PatchCache.createKey(1, 10, "=>", "from", "to", 5, "20220110.120000");
+
+    assertEquals(key, PatchCache.createKey(1, 10, "=>", "from", "to", 5, "20220110.120000"));
+    assertFalse(key.equals(PatchCache.createKey(1, 10, "=>", "from", "to", 5, "20220111.090000")));
+    assertFalse(key.equals(PatchCache.createKey(1, 10, "=>", "from", "to", 5, null)));
+  }
+
+  public void second_request_replays_recorded_patch() throws Exception {
+    final PatchCache cache = new PatchCache(myTempDir);
+    final CountingProducer producer = new CountingProducer();
+
+    final List<String> built = new ArrayList<String>();
+    cache.buildPatch("key", createBuilder(built), producer);
+    final List<String> replayed = new ArrayList<String>();
+    cache.buildPatch("key", createBuilder(replayed), producer);
+
+    assertEquals(producer.myCalls, 1);
+    assertEquals(built, Arrays.asList("createDirectory dir", "changeOrCreateBinaryFile dir" + File.separator + "file 100644 content", "deleteFile old false"));
+    assertEquals(replayed, built);
+  }
+
+  public void different_keys_build_separate_patches() throws Exception {
+    final PatchCache cache = new PatchCache(myTempDir);
+    final CountingProducer producer = new CountingProducer();
+
+    cache.buildPatch("key1", createBuilder(new ArrayList<String>()), producer);
+    cache.buildPatch("key2", createBuilder(new ArrayList<String>()), producer);
+
+    assertEquals(producer.myCalls, 2);
+  }
+
+  public void failed_patch_is_not_cached() throws Exception {
+    final PatchCache cache = new PatchCache(myTempDir);
+    try {
+      cache.buildPatch("key", createBuilder(new ArrayList<String>()), new PatchCache.PatchProducer() {
+        public void buildPatch(final PatchBuilder builder) throws IOException, VcsException {
+          builder.createDirectory(new File("dir"));
+          throw new VcsException("failed");
+        }
+      });
+      fail("Exception expected");
+    } catch (VcsException e) {
+      //expected
+    }
+    final CountingProducer producer = new CountingProducer();
+
+    cache.buildPatch("key", createBuilder(new ArrayList<String>()), producer);
+
+    assertEquals(producer.myCalls, 1);
+  }
+
+  private static PatchBuilder createBuilder(final List<String> calls) {
+    return (PatchBuilder)Proxy.newProxyInstance(PatchBuilder.class.getClassLoader(), new Class[]{PatchBuilder.class}, new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        final StringBuilder call = new StringBuilder(method.getName());
+        for (Object arg : args == null ? new Object[0] : args) {
+          call.append(' ');
+          if (arg instanceof InputStream) {
+            call.append(readText((InputStream)arg));
+          }
+          else if (!(arg instanceof Long)) {
+            call.append(arg);
+          }
+        }
+        calls.add(call.toString().trim());
+        return null;
+      }
+    });
+  }
+
+  private static String readText(final InputStream input) throws IOException {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1024];
+    int read;
+    while ((read = input.read(buffer)) != -1) {
+      output.write(buffer, 0, read);
+    }
+    return output.toString("UTF-8");
+  }
+
+  private static class CountingProducer implements PatchCache.PatchProducer {
+    private int myCalls;
+
+    public void buildPatch(final PatchBuilder builder) throws IOException, VcsException {
+      myCalls++;
+      builder.createDirectory(new File("dir"));
+      builder.changeOrCreateBinaryFile(new File("dir", "file"), "100644", new ByteArrayInputStream("content".getBytes("UTF-8")), 7);
+      builder.deleteFile(new File("old"), false);
+    }
+  }
+}
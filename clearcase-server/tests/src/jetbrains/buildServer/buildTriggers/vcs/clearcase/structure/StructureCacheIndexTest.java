@@ -0,0 +1,173 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import jetbrains.buildServer.util.Dates;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class StructureCacheIndexTest {
+  private File myBaseDir;
+  private long myNow;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myBaseDir = FileUtil.createTempDirectory("cc", "structure");
+    myNow = System.currentTimeMillis();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myBaseDir);
+  }
+
+  public void evicts_files_not_used_for_max_age() throws IOException {
+    final File old = createSnapshot("1", "path", 100, 3 * Dates.ONE_HOUR);
+    final File recent = createSnapshot("1", "path", 200, Dates.ONE_MINUTE);
+
+    final List<File> evicted = new StructureCacheIndex(myBaseDir).evict(null, 0, 0, Dates.ONE_HOUR);
+
+    assertEquals(set(evicted), set(old));
+    assertTrue(recent.isFile());
+  }
+
+  public void evicts_latest_snapshot_for_max_age() throws IOException {
+    final File latest = createSnapshot("1", "path", 100, 3 * Dates.ONE_HOUR);
+
+    assertEquals(new StructureCacheIndex(myBaseDir).evict(null, 0, 0, Dates.ONE_HOUR), Arrays.asList(latest));
+  }
+
+  public void evicts_least_recently_used_files_of_dir_over_quota() throws IOException {
+    final File oldest = createSnapshot("1", "path", 100, 3 * Dates.ONE_MINUTE);
+    final File older = createSnapshot("1", "path", 200, 2 * Dates.ONE_MINUTE);
+    final File latest = createSnapshot("1", "path", 300, Dates.ONE_MINUTE);
+    final File otherRoot = createSnapshot("2", "path", 100, 10 * Dates.ONE_MINUTE);
+
+    final List<File> evicted = new StructureCacheIndex(myBaseDir).evict(null, 0, 2 * 1024, 0);
+
+    assertEquals(set(evicted), set(oldest));
+    assertTrue(older.isFile());
+    assertTrue(latest.isFile());
+    assertTrue(otherRoot.isFile());
+  }
+
+  public void keeps_latest_snapshot_of_every_path_over_quota() throws IOException {
+    final File path1 = createSnapshot("1", "path1", 100, 3 * Dates.ONE_MINUTE);
+    final File path2 = createSnapshot("1", "path2", 100, 2 * Dates.ONE_MINUTE);
+
+    assertTrue(new StructureCacheIndex(myBaseDir).evict(null, 1024, 1024, 0).isEmpty());
+    assertTrue(path1.isFile());
+    assertTrue(path2.isFile());
+  }
+
+  public void evicts_least_recently_used_files_over_total_size() throws IOException {
+    final File root1Old = createSnapshot("1", "path", 100, 4 * Dates.ONE_MINUTE);
+    createSnapshot("1", "path", 200, Dates.ONE_MINUTE);
+    final File root2Old = createSnapshot("2", "path", 100, 3 * Dates.ONE_MINUTE);
+    createSnapshot("2", "path", 200, Dates.ONE_MINUTE);
+
+    final List<File> evicted = new StructureCacheIndex(myBaseDir).evict(null, 3 * 1024, 0, 0);
+
+    assertEquals(evicted, Arrays.asList(root1Old));
+    assertTrue(root2Old.isFile());
+  }
+
+  public void scoped_eviction_ignores_total_size_and_other_dirs() throws IOException {
+    final File root1Old = createSnapshot("1", "path", 100, 4 * Dates.ONE_MINUTE);
+    createSnapshot("1", "path", 200, Dates.ONE_MINUTE);
+    final File root2Old = createSnapshot("2", "path", 100, 5 * Dates.ONE_HOUR);
+    createSnapshot("2", "path", 200, Dates.ONE_MINUTE);
+
+    final List<File> evicted = new StructureCacheIndex(myBaseDir).evict(new File(myBaseDir, "1"), 1024, 0, Dates.ONE_HOUR);
+
+    assertTrue(evicted.isEmpty());
+    assertTrue(root1Old.isFile());
+    assertTrue(root2Old.isFile());
+  }
+
+  public void evicted_files_stay_indexed_until_deleted() throws IOException {
+    final File old = createSnapshot("1", "path", 100, 3 * Dates.ONE_HOUR);
+    final StructureCacheIndex index = new StructureCacheIndex(myBaseDir);
+
+    assertEquals(index.evict(null, 0, 0, Dates.ONE_HOUR), Arrays.asList(old));
+    // the file could not be deleted, e.g. it is still read
+    assertEquals(index.evict(null, 0, 0, Dates.ONE_HOUR), Arrays.asList(old));
+
+    FileUtil.delete(old);
+    index.fileDeleted(old);
+    assertTrue(index.evict(null, 0, 0, Dates.ONE_HOUR).isEmpty());
+  }
+
+  public void used_files_are_evicted_last() throws IOException {
+    final File used = createSnapshot("1", "path", 100, 4 * Dates.ONE_MINUTE);
+    final File notUsed = createSnapshot("1", "path", 200, 3 * Dates.ONE_MINUTE);
+    createSnapshot("1", "path", 300, Dates.ONE_MINUTE);
+    final StructureCacheIndex index = new StructureCacheIndex(myBaseDir);
+
+    index.fileUsed(used);
+
+    assertEquals(index.evict(null, 0, 2 * 1024, 0), Arrays.asList(notUsed));
+  }
+
+  public void remove_under_forgets_only_deleted_files() throws IOException {
+    final File deleted = createSnapshot("1", "path", 100, 3 * Dates.ONE_HOUR);
+    final File existing = createSnapshot("1", "path", 200, 3 * Dates.ONE_HOUR);
+    final StructureCacheIndex index = new StructureCacheIndex(myBaseDir);
+    assertTrue(index.evict(null, 0, 0, 0).isEmpty());
+
+    FileUtil.delete(deleted);
+    index.removeUnder(new File(myBaseDir, "1"));
+
+    assertEquals(index.evict(null, 0, 0, Dates.ONE_HOUR), Arrays.asList(existing));
+  }
+
+  /**
+   * @return the snapshot file of the version of the path, it was last used the given time ago
+   */
+  private File createSnapshot(final String rootDir, final String path, final long version, final long usedAgo) throws IOException {
+    final File file = new File(new File(new File(myBaseDir, rootDir), path), String.valueOf(version));
+    FileUtil.createParentDirs(file);
+    final FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(new byte[1024]);
+    } finally {
+      output.close();
+    }
+    assertTrue(file.setLastModified(myNow - usedAgo));
+    return file;
+  }
+
+  private static Set<File> set(final File... files) {
+    return new HashSet<File>(Arrays.asList(files));
+  }
+
+  private static Set<File> set(final List<File> files) {
+    return new HashSet<File>(files);
+  }
+}